@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.ListBoxModel;
+import org.kohsuke.github.GHCheckRun;
+import org.kohsuke.github.GHCheckRunBuilder;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.Serializable;
+
+/**
+ * An annotation of a check run, pointing at some lines of a file of the commit.
+ *
+ * See <a href="https://docs.github.com/en/rest/reference/checks#annotations-object">GitHub's annotations object</a>
+ */
+public final class CheckAnnotation extends AbstractDescribableImpl<CheckAnnotation> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+    private final int startLine;
+    private final String message;
+    private int endLine;
+    private GHCheckRun.AnnotationLevel level = GHCheckRun.AnnotationLevel.WARNING;
+    private String title;
+
+    @DataBoundConstructor
+    public CheckAnnotation(String path, int startLine, String message) {
+        this.path = path;
+        this.startLine = startLine;
+        this.message = message;
+    }
+
+    @DataBoundSetter
+    public void setEndLine(int endLine) {
+        this.endLine = endLine;
+    }
+
+    @DataBoundSetter
+    public void setLevel(GHCheckRun.AnnotationLevel level) {
+        this.level = level;
+    }
+
+    @DataBoundSetter
+    public void setTitle(String title) {
+        this.title = Util.fixEmpty(title);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getStartLine() {
+        return startLine;
+    }
+
+    /**
+     * The last annotated line, the start line when not set.
+     */
+    public int getEndLine() {
+        return endLine < startLine ? startLine : endLine;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public GHCheckRun.AnnotationLevel getLevel() {
+        return level;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    GHCheckRunBuilder.Annotation toAnnotation() {
+        GHCheckRunBuilder.Annotation annotation = new GHCheckRunBuilder.Annotation(path, startLine, getEndLine(), level, message);
+        return title == null ? annotation : annotation.withTitle(title);
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<CheckAnnotation> {
+
+        @Override
+        public String getDisplayName() {
+            return "Annotation";
+        }
+
+        public ListBoxModel doFillLevelItems() {
+            ListBoxModel list = new ListBoxModel();
+            for (GHCheckRun.AnnotationLevel level : GHCheckRun.AnnotationLevel.values()) {
+                list.add(level.name(), level.name());
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Util;
+import org.kohsuke.github.GHCheckRun;
+import org.kohsuke.github.GHCheckRunBuilder;
+import org.kohsuke.github.GHCommit;
+import org.kohsuke.github.GHRepository;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Delivers a notification as a check run named after its context, instead of as a commit status.
+ *
+ * The first notification of a build for a check run creates it, the following ones PATCH it with their progress and
+ * append their annotations, in batches of at most {@link #MAX_ANNOTATIONS}, the limit GitHub accepts per request. A
+ * delivery remembers what it already sent, so a retry only sends what is left.
+ *
+ * See <a href="https://docs.github.com/en/rest/reference/checks#runs">GitHub's Check Runs API</a>
+ */
+final class CheckRunDelivery {
+
+    static final int MAX_ANNOTATIONS = 50;
+
+    private final StatusNotification notification;
+
+    private String sha;
+
+    private Long id;
+
+    private boolean progressSent;
+
+    private int annotationsSent;
+
+    CheckRunDelivery(@Nonnull StatusNotification notification) {
+        this.notification = notification;
+    }
+
+    void send(@Nonnull GHRepository repository) throws IOException {
+        String gitApiUrl = notification.getGitApiUrl();
+        if (sha == null) {
+            sha = GitHubStatusNotificationStep.isFullSha(notification.getSha()) ? notification.getSha()
+                    // check runs are only created for full commit hashes
+                    : NotifyMetrics.time(NotifyMetrics.Phase.COMMIT, gitApiUrl, () -> getCommit(repository)).getSHA1();
+        }
+        GitHubCheckRunsAction action = GitHubCheckRunsAction.of(notification);
+        if (id == null && action != null) {
+            id = action.getId(notification, sha);
+        }
+        List<CheckAnnotation> annotations = notification.getAnnotations();
+        if (!progressSent) {
+            List<CheckAnnotation> batch = annotations.subList(0, Math.min(annotations.size(), MAX_ANNOTATIONS));
+            GHCheckRunBuilder builder = id == null
+                    ? repository.createCheckRun(notification.getContext(), sha).withStartedAt(new Date())
+                    : repository.updateCheckRun(id);
+            GHCheckRun run = NotifyMetrics.time(NotifyMetrics.Phase.STATUS, gitApiUrl,
+                    () -> withProgress(builder).add(output(batch)).create());
+            if (id == null) {
+                id = run.getId();
+                if (action != null) {
+                    action.created(notification, sha, id);
+                }
+            }
+            progressSent = true;
+            annotationsSent = batch.size();
+        }
+        while (annotationsSent < annotations.size()) {
+            List<CheckAnnotation> batch = annotations.subList(annotationsSent, Math.min(annotations.size(), annotationsSent + MAX_ANNOTATIONS));
+            NotifyMetrics.time(NotifyMetrics.Phase.STATUS, gitApiUrl, () -> repository.updateCheckRun(id).add(output(batch)).create());
+            annotationsSent += batch.size();
+        }
+    }
+
+    private GHCommit getCommit(GHRepository repository) throws IOException {
+        GHCommit commit = repository.getCommit(notification.getSha());
+        if (commit == null) {
+            throw new IllegalArgumentException(GitHubStatusNotificationStep.INVALID_COMMIT);
+        }
+        return commit;
+    }
+
+    /**
+     * A pending notification leaves the check run in progress, any other one completes it.
+     */
+    private GHCheckRunBuilder withProgress(GHCheckRunBuilder builder) {
+        builder.withExternalID(notification.getBuild());
+        if (Util.fixEmpty(notification.getTargetUrl()) != null) {
+            builder.withDetailsURL(notification.getTargetUrl());
+        }
+        switch (notification.getState()) {
+            case PENDING:
+                return builder.withStatus(GHCheckRun.Status.IN_PROGRESS);
+            case SUCCESS:
+                return builder.withStatus(GHCheckRun.Status.COMPLETED).withConclusion(GHCheckRun.Conclusion.SUCCESS)
+                        .withCompletedAt(new Date());
+            default:
+                return builder.withStatus(GHCheckRun.Status.COMPLETED).withConclusion(GHCheckRun.Conclusion.FAILURE)
+                        .withCompletedAt(new Date());
+        }
+    }
+
+    private GHCheckRunBuilder.Output output(List<CheckAnnotation> batch) {
+        String summary = Util.fixEmpty(notification.getDescription()) == null ? notification.getState().name()
+                : notification.getDescription();
+        GHCheckRunBuilder.Output output = new GHCheckRunBuilder.Output(notification.getContext(), summary);
+        for (CheckAnnotation annotation : batch) {
+            output.add(annotation.toAnnotation());
+        }
+        return output;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import jenkins.util.Timer;
+import org.kohsuke.github.HttpException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker per GitHub API endpoint, so an unreachable GitHub Enterprise instance fails the notifications
+ * straight away instead of making each of them wait for the connection timeouts.
+ *
+ * After {@link GitHubNotifyConfiguration#getCircuitBreakerThreshold()} consecutive failures to reach the endpoint the
+ * breaker opens and requests fail fast with {@link EndpointUnavailableException}. Once
+ * {@link GitHubNotifyConfiguration#getCircuitBreakerOpenSeconds()} have elapsed a single probe request is let through,
+ * closing the breaker if it succeeds and opening it again otherwise.
+ *
+ * The {@link StatusOutbox} is replayed when a breaker goes half-open, so one of the statuses that failed fast is the probe,
+ * and again when it closes, so the other ones are delivered without waiting for the next periodic replay. Each breaker
+ * has at most one replay pending, repeated trips do not stack replays.
+ */
+@Extension
+public class CircuitBreakers {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreakers.class.getName());
+
+    private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    @Nonnull
+    public static CircuitBreakers get() {
+        return ExtensionList.lookupSingleton(CircuitBreakers.class);
+    }
+
+    /**
+     * Runs the call unless the breaker of the endpoint is open, recording whether the endpoint could be reached.
+     */
+    <T> T call(@CheckForNull String gitApiUrl, @Nonnull Call<T> call) throws IOException {
+        GitHubNotifyConfiguration configuration = GitHubNotifyConfiguration.get();
+        int threshold = configuration.getCircuitBreakerThreshold();
+        if (threshold <= 0) {
+            return call.call();
+        }
+        Breaker breaker = breaker(gitApiUrl);
+        breaker.acquire();
+        boolean reached = false;
+        try {
+            T result = call.call();
+            reached = true;
+            return result;
+        } catch (IOException e) {
+            reached = !isOutage(e);
+            throw e;
+        } catch (RuntimeException e) {
+            // GitHub answered, the request was wrong
+            reached = true;
+            throw e;
+        } finally {
+            if (reached) {
+                if (breaker.succeeded()) {
+                    breaker.scheduleReplay(0);
+                }
+            } else {
+                long openMillis = TimeUnit.SECONDS.toMillis(configuration.getCircuitBreakerOpenSeconds());
+                if (breaker.failed(threshold, openMillis)) {
+                    breaker.scheduleReplay(openMillis);
+                }
+            }
+        }
+    }
+
+    private static ScheduledFuture<?> replayOutbox(long delayMillis) {
+        return Timer.get().schedule(() -> {
+            int count = StatusOutbox.get().replay();
+            if (count > 0) {
+                LOGGER.log(Level.FINE, "Delivering again {0} GitHub statuses after a change of endpoint availability", count);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The breakers known so far, by endpoint.
+     */
+    @Nonnull
+    public Map<String, Breaker> getBreakers() {
+        return new TreeMap<>(breakers);
+    }
+
+    /**
+     * Names of the endpoints whose breaker is not closed.
+     */
+    @Nonnull
+    public List<String> getUnavailableEndpoints() {
+        List<String> endpoints = new ArrayList<>();
+        for (Map.Entry<String, Breaker> entry : getBreakers().entrySet()) {
+            if (entry.getValue().getState() != State.CLOSED) {
+                endpoints.add(entry.getKey());
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * Closes every breaker, for an administrator who knows the endpoints are back.
+     */
+    public void reset() {
+        for (Breaker breaker : breakers.values()) {
+            breaker.cancelReplay();
+        }
+        breakers.clear();
+        replayOutbox(0);
+    }
+
+    @Nonnull
+    private Breaker breaker(@CheckForNull String gitApiUrl) {
+        String endpoint = displayName(gitApiUrl);
+        Breaker breaker = breakers.get(endpoint);
+        if (breaker == null) {
+            breaker = new Breaker(endpoint);
+            Breaker existing = breakers.putIfAbsent(endpoint, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    @Nonnull
+    static String displayName(@CheckForNull String gitApiUrl) {
+        String endpoint = Util.fixEmpty(gitApiUrl);
+        return endpoint == null ? "https://api.github.com" : endpoint;
+    }
+
+    /**
+     * Whether the failure means the endpoint could not be reached or could not serve the request, as opposed to a
+     * request GitHub rejected.
+     */
+    static boolean isOutage(IOException e) {
+        if (e instanceof RateLimitScheduler.RateLimitedException || e instanceof EndpointUnavailableException) {
+            return false;
+        }
+        if (e instanceof HttpException) {
+            int code = ((HttpException) e).getResponseCode();
+            return code < 0 || code >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+        return !(e instanceof FileNotFoundException);
+    }
+
+    /**
+     * A call to GitHub guarded by a breaker.
+     */
+    interface Call<T> {
+        T call() throws IOException;
+    }
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of sending a request to an endpoint whose breaker is open. A status nobody waits for stays in the
+     * {@link StatusOutbox}, without counting as a failed delivery, and is delivered again when the breaker goes
+     * half-open or closes. The status of a step that failed because of it is not sent later.
+     */
+    public static final class EndpointUnavailableException extends IOException {
+        EndpointUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The breaker of an endpoint, guarded by its monitor.
+     */
+    public static final class Breaker {
+        private final String endpoint;
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long openUntil;
+        private boolean probing;
+        @CheckForNull
+        private ScheduledFuture<?> replay;
+
+        Breaker(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        synchronized void acquire() throws EndpointUnavailableException {
+            long now = System.currentTimeMillis();
+            if (state == State.OPEN && now >= openUntil) {
+                state = State.HALF_OPEN;
+            }
+            if (state == State.HALF_OPEN && !probing) {
+                probing = true;
+                return;
+            }
+            if (state != State.CLOSED) {
+                throw new EndpointUnavailableException("GitHub endpoint " + endpoint + " is unavailable after "
+                        + consecutiveFailures + " consecutive failures, not sending requests until " + new Date(openUntil));
+            }
+        }
+
+        /**
+         * @return whether the breaker was not closed before
+         */
+        synchronized boolean succeeded() {
+            boolean recovered = state != State.CLOSED;
+            if (recovered) {
+                LOGGER.log(Level.INFO, "GitHub endpoint {0} is available again", endpoint);
+            }
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            probing = false;
+            return recovered;
+        }
+
+        /**
+         * @return whether the breaker is open from now on for the given time
+         */
+        synchronized boolean failed(int threshold, long openMillis) {
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || consecutiveFailures >= threshold) {
+                if (state == State.CLOSED) {
+                    LOGGER.log(Level.WARNING, "GitHub endpoint {0} failed {1} consecutive times, failing fast for {2}ms",
+                            new Object[] {endpoint, consecutiveFailures, openMillis});
+                }
+                state = State.OPEN;
+                openUntil = System.currentTimeMillis() + openMillis;
+                probing = false;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Replays the outbox after the delay, unless a replay for this endpoint is already due by then.
+         */
+        synchronized void scheduleReplay(long delayMillis) {
+            if (replay != null && !replay.isDone()) {
+                if (replay.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+                    return;
+                }
+                replay.cancel(false);
+            }
+            replay = replayOutbox(delayMillis);
+        }
+
+        synchronized void cancelReplay() {
+            if (replay != null) {
+                replay.cancel(false);
+                replay = null;
+            }
+        }
+
+        @Nonnull
+        public synchronized State getState() {
+            return state;
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * When the next probe request is let through, meaningful while open.
+         */
+        @Nonnull
+        public synchronized Date getOpenUntil() {
+            return new Date(openUntil);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.IdCredentials;
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.util.SystemProperties;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index by id of the username/password credentials visible to each item, so resolving the credentials of a
+ * notification does not list and filter every credential of the controller.
+ *
+ * The whole index is dropped when a credentials store, or anything that may hold one like a folder or a user, is saved. Entries
+ * also expire after {@link #TTL_MILLIS}, for the credentials providers that are not backed by a saved configuration.
+ */
+@Extension
+public class CredentialsIndex {
+
+    static /* non-final for the script console and tests */ long TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+            SystemProperties.getLong(CredentialsIndex.class.getName() + ".ttlSeconds", 60L));
+
+    static final int MAX_ENTRIES = SystemProperties.getInteger(CredentialsIndex.class.getName() + ".maxEntries", 1000);
+
+    /**
+     * Indexes by item full name, least recently used first, guarded by itself.
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    @Nonnull
+    public static CredentialsIndex get() {
+        return ExtensionList.lookupSingleton(CredentialsIndex.class);
+    }
+
+    /**
+     * Returns the credentials with the given id visible to the item, or null if there is none.
+     */
+    @CheckForNull
+    UsernamePasswordCredentials find(@CheckForNull Item context, @Nonnull String credentialsId) {
+        return entry(context).byId.get(credentialsId);
+    }
+
+    /**
+     * Returns every credential visible to the item, in lookup order.
+     */
+    @Nonnull
+    List<UsernamePasswordCredentials> list(@CheckForNull Item context) {
+        return entry(context).all;
+    }
+
+    void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private Entry entry(Item context) {
+        String key = context == null ? "" : context.getFullName();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && !entry.isExpired()) {
+                return entry;
+            }
+        }
+        Entry entry = new Entry(CredentialsProvider.lookupCredentials(UsernamePasswordCredentials.class, context,
+                ACL.SYSTEM, Collections.<DomainRequirement>emptyList()));
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    private static final class Entry {
+        private final List<UsernamePasswordCredentials> all;
+        private final Map<String, UsernamePasswordCredentials> byId = new LinkedHashMap<>();
+        private final long created = System.currentTimeMillis();
+
+        Entry(List<UsernamePasswordCredentials> credentials) {
+            this.all = Collections.unmodifiableList(new ArrayList<>(credentials));
+            for (UsernamePasswordCredentials c : credentials) {
+                if (c instanceof IdCredentials && !byId.containsKey(((IdCredentials) c).getId())) {
+                    byId.put(((IdCredentials) c).getId(), c);
+                }
+            }
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - created > TTL_MILLIS;
+        }
+    }
+
+    /**
+     * Drops the index when credentials may have changed.
+     */
+    @Extension
+    public static final class ChangeListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof ItemGroup || o instanceof User || o.getClass().getName().startsWith("com.cloudbees.plugins.credentials.")) {
+                CredentialsIndex.get().invalidate();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Several credentials used under a single id, each status is sent with the member that has the most requests left
+ * before its rate limit.
+ *
+ * The requests left are the ones reported by GitHub in the last response received with each member, minus the requests
+ * started since then. Members that exhausted their rate limit are skipped until it resets, if every member is exhausted
+ * the one resetting first is used. Members not used yet are preferred, to learn their rate limit.
+ */
+public class CredentialsPool extends AbstractDescribableImpl<CredentialsPool> {
+
+    private final String id;
+    private final List<String> credentialsIds;
+
+    @DataBoundConstructor
+    public CredentialsPool(String id, String credentialsIds) {
+        this.id = Util.fixEmptyAndTrim(id);
+        this.credentialsIds = split(credentialsIds);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The ids of the members, one per line as in the configuration form.
+     */
+    public String getCredentialsIds() {
+        return String.join("\n", credentialsIds);
+    }
+
+    @Nonnull
+    public List<String> getMembers() {
+        return Collections.unmodifiableList(credentialsIds);
+    }
+
+    /**
+     * Returns the member to send the next request with.
+     */
+    @Nonnull
+    String select(@CheckForNull String gitApiUrl) {
+        if (credentialsIds.isEmpty()) {
+            throw new IllegalArgumentException("The credentials pool " + id + " has no credentials");
+        }
+        RateLimitScheduler scheduler = RateLimitScheduler.get();
+        long now = System.currentTimeMillis();
+        RateLimitScheduler.Bucket best = null;
+        String bestId = null;
+        long bestScore = Long.MIN_VALUE;
+        for (String member : credentialsIds) {
+            RateLimitScheduler.Bucket bucket = scheduler.bucket(gitApiUrl, member);
+            long blockedUntil = bucket.getBlockedUntil();
+            int remaining = bucket.getRemaining();
+            long score;
+            if (blockedUntil > now) {
+                // exhausted, the sooner it resets the better
+                score = Integer.MIN_VALUE - (blockedUntil - now);
+            } else if (remaining < 0) {
+                score = Integer.MAX_VALUE;
+            } else {
+                score = remaining;
+            }
+            if (score > bestScore) {
+                best = bucket;
+                bestId = member;
+                bestScore = score;
+            }
+        }
+        best.reserve();
+        return bestId;
+    }
+
+    /**
+     * Returns the credentials to use for the given id: a member of the pool with that id, or the id itself when it is
+     * not a pool.
+     */
+    static String resolve(@CheckForNull String credentialsId, @CheckForNull String gitApiUrl) {
+        if (credentialsId == null) {
+            return null;
+        }
+        CredentialsPool pool = GitHubNotifyConfiguration.get().getCredentialsPool(credentialsId);
+        return pool == null ? credentialsId : pool.select(gitApiUrl);
+    }
+
+    private static List<String> split(String credentialsIds) {
+        List<String> ids = new ArrayList<>();
+        if (credentialsIds != null) {
+            for (String member : credentialsIds.split("[\\s,]+")) {
+                if (!member.isEmpty() && !ids.contains(member)) {
+                    ids.add(member);
+                }
+            }
+        }
+        return ids;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<CredentialsPool> {
+
+        @Override
+        public String getDisplayName() {
+            return "Credentials pool";
+        }
+
+        public FormValidation doCheckId(@QueryParameter String value) {
+            return Util.fixEmptyAndTrim(value) == null ? FormValidation.error("The pool needs an id") : FormValidation.ok();
+        }
+
+        public FormValidation doCheckCredentialsIds(@QueryParameter String value) {
+            return split(value).isEmpty() ? FormValidation.error("The pool needs at least one credentials id") : FormValidation.ok();
+        }
+    }
+}
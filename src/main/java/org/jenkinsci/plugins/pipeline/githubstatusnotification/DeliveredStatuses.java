@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Util;
+import jenkins.util.SystemProperties;
+
+import javax.annotation.Nonnull;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the last status delivered for each target, so sending exactly the same status again can be skipped.
+ *
+ * A delivered status is only remembered for {@link #TTL_MILLIS}: anyone else, another controller, a GitHub Action or a
+ * manual API call, may have replaced it on GitHub since, so only a status repeated shortly after is skipped. The targets
+ * are kept in a bounded least recently used map, dropping one only means the next identical status is sent.
+ */
+final class DeliveredStatuses {
+
+    static /* non-final for the script console and tests */ long TTL_MILLIS = TimeUnit.SECONDS.toMillis(
+            SystemProperties.getLong(DeliveredStatuses.class.getName() + ".ttlSeconds", 60L));
+
+    /**
+     * Delivered statuses by target, guarded by itself.
+     */
+    private final Map<StatusTarget, Entry> entries;
+
+    private final AtomicLong suppressed = new AtomicLong();
+
+    DeliveredStatuses(final int maxEntries) {
+        entries = new LinkedHashMap<StatusTarget, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StatusTarget, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Whether the very same status was the last one delivered for its target a short time ago, counting it as
+     * suppressed if so.
+     */
+    boolean isDuplicate(@Nonnull StatusNotification notification) {
+        if (!notification.getAnnotations().isEmpty()) {
+            // annotations are appended to the check run, sending them again is never a no-op
+            return false;
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(new StatusTarget(notification));
+        }
+        if (entry != null && System.currentTimeMillis() < entry.expires && fingerprint(notification).equals(entry.fingerprint)) {
+            suppressed.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    void delivered(@Nonnull StatusNotification notification) {
+        Entry entry = new Entry(fingerprint(notification), System.currentTimeMillis() + TTL_MILLIS);
+        synchronized (entries) {
+            entries.put(new StatusTarget(notification), entry);
+        }
+    }
+
+    long getSuppressed() {
+        return suppressed.get();
+    }
+
+    private static String fingerprint(StatusNotification notification) {
+        return notification.getState() + "\u0000" + Util.fixNull(notification.getDescription()) + "\u0000"
+                + Util.fixNull(notification.getTargetUrl());
+    }
+
+    private static final class Entry {
+        private final String fingerprint;
+        private final long expires;
+
+        Entry(String fingerprint, long expires) {
+            this.fingerprint = fingerprint;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.util.Secret;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.github_branch_source.GitHubAppCredentials;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Installation tokens of GitHub App credentials, minted once per credentials and installation owner and shared by every
+ * notification until shortly before they expire.
+ *
+ * GitHub installation tokens are valid for one hour, they are used for {@link #TOKEN_TTL_MILLIS} and then a new one is
+ * minted. Editing the credentials (app id or private key) mints a new token too.
+ */
+@Extension
+public class GitHubAppTokens {
+
+    static /* non-final for the script console and tests */ long TOKEN_TTL_MILLIS = TimeUnit.MINUTES.toMillis(
+            SystemProperties.getLong(GitHubAppTokens.class.getName() + ".tokenTtlMinutes", 50L));
+
+    private final ConcurrentMap<String, Token> tokens = new ConcurrentHashMap<>();
+
+    private final AtomicLong minted = new AtomicLong();
+
+    @Nonnull
+    public static GitHubAppTokens get() {
+        return ExtensionList.lookupSingleton(GitHubAppTokens.class);
+    }
+
+    /**
+     * Returns a token for the installation of the app in the owner account.
+     *
+     * @param owner the account of the repository, when unknown the owner configured in the credentials is used and the
+     *              token is not cached here
+     */
+    @Nonnull
+    Secret token(@Nonnull String credentialsId, @Nonnull GitHubAppCredentials credentials, @CheckForNull String owner) {
+        if (owner == null) {
+            return credentials.getPassword();
+        }
+        String key = credentialsId + ' ' + owner + ' '
+                + Util.getDigestOf(credentials.getAppID() + ':' + credentials.getPrivateKey().getPlainText());
+        Token token = tokens.get(key);
+        if (token == null) {
+            dropEdited(credentialsId, owner);
+            token = new Token();
+            Token existing = tokens.putIfAbsent(key, token);
+            if (existing != null) {
+                token = existing;
+            }
+        }
+        return token.get(credentials, owner);
+    }
+
+    /**
+     * Forgets the tokens of the credentials, used when GitHub no longer accepts them.
+     */
+    void invalidate(@Nonnull String credentialsId) {
+        for (Iterator<String> it = tokens.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(credentialsId + ' ')) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Number of installation tokens minted so far.
+     */
+    public long getMinted() {
+        return minted.get();
+    }
+
+    public int getSize() {
+        return tokens.size();
+    }
+
+    private void dropEdited(String credentialsId, String owner) {
+        for (Iterator<String> it = tokens.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(credentialsId + ' ' + owner + ' ')) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * The token of an installation, guarded by its monitor so concurrent notifications mint it once.
+     */
+    private final class Token {
+        private Secret secret;
+        private long refreshAt;
+
+        synchronized Secret get(GitHubAppCredentials credentials, String owner) {
+            long now = System.currentTimeMillis();
+            if (secret == null || now >= refreshAt) {
+                // a fresh copy, so the token is not one cached by the credentials themselves
+                secret = credentials.withOwner(owner).getPassword();
+                refreshAt = now + TOKEN_TTL_MILLIS;
+                minted.incrementAndGet();
+            }
+            return secret;
+        }
+    }
+}
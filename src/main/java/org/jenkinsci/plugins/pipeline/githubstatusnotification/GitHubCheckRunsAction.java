@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Util;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ids of the check runs created by a build, so its following notifications update them instead of creating new ones.
+ */
+public class GitHubCheckRunsAction extends InvisibleAction {
+
+    private static final Logger LOGGER = Logger.getLogger(GitHubCheckRunsAction.class.getName());
+
+    private final Map<String, Long> ids = new HashMap<>();
+
+    /**
+     * Looks up the action of the build that sent the notification, creating it if needed.
+     *
+     * @return the action or null if the build no longer exists
+     */
+    @CheckForNull
+    static GitHubCheckRunsAction of(@Nonnull StatusNotification notification) {
+        Run<?, ?> run = notification.getRun();
+        if (run == null) {
+            return null;
+        }
+        synchronized (run) {
+            GitHubCheckRunsAction action = run.getAction(GitHubCheckRunsAction.class);
+            if (action == null) {
+                action = new GitHubCheckRunsAction();
+                run.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    /**
+     * The id of the check run created for the notification name on the given commit.
+     */
+    @CheckForNull
+    synchronized Long getId(@Nonnull StatusNotification notification, @Nonnull String sha) {
+        return ids.get(key(notification, sha));
+    }
+
+    /**
+     * Remembers a new check run, saving the build so it is still updated after a restart.
+     */
+    void created(@Nonnull StatusNotification notification, @Nonnull String sha, long id) {
+        synchronized (this) {
+            ids.put(key(notification, sha), id);
+        }
+        Run<?, ?> run = notification.getRun();
+        if (run != null) {
+            try {
+                run.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to save " + run, e);
+            }
+        }
+    }
+
+    private static String key(StatusNotification notification, String sha) {
+        return Util.fixNull(notification.getGitApiUrl()) + ' ' + notification.getAccount() + '/' + notification.getRepo()
+                + '@' + sha + ' ' + notification.getContext();
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.model.PeriodicWork;
+import hudson.util.Secret;
+import jenkins.util.SystemProperties;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GitHub;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Proxy;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller wide cache of {@link GitHub} clients, so consecutive notifications using the same credentials and
+ * endpoint reuse the same client (and its keep-alive connections) instead of building a new one per step.
+ *
+ * Entries are keyed by credentials id, GitHub App installation owner, a fingerprint of the credentials secret, API
+ * endpoint and proxy, so a rotated credential or installation token never reuses a client built with the old secret.
+ */
+@Extension
+public class GitHubClientCache {
+
+    /**
+     * How long an unused client is kept in the cache.
+     */
+    static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(
+            SystemProperties.getLong(GitHubClientCache.class.getName() + ".idleTimeoutMinutes", 30L));
+
+    private final ConcurrentMap<Key, CachedClient> clients = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    @Nonnull
+    public static GitHubClientCache get() {
+        return ExtensionList.lookupSingleton(GitHubClientCache.class);
+    }
+
+    /**
+     * Returns the cached client for the given connection data, building a new one if needed.
+     */
+    @Nonnull
+    CachedClient getOrCreate(@Nonnull String credentialsId, @CheckForNull String installation, @Nonnull String username,
+                             @Nonnull Secret secret, @CheckForNull String gitApiUrl, @Nonnull Proxy proxy,
+                             @Nonnull ClientFactory factory) throws IOException {
+        Key key = new Key(credentialsId, Util.fixNull(installation), fingerprint(username, secret), Util.fixEmpty(gitApiUrl), proxy);
+        CachedClient client = clients.get(key);
+        if (client != null) {
+            hits.incrementAndGet();
+            client.touch();
+            return client;
+        }
+        misses.incrementAndGet();
+        dropRotated(key);
+        client = new CachedClient(factory.create());
+        CachedClient existing = clients.putIfAbsent(key, client);
+        return existing != null ? existing : client;
+    }
+
+    /**
+     * Forgets any client built for the given credentials, used when GitHub reports them as no longer valid.
+     */
+    void invalidate(@Nonnull String credentialsId, @CheckForNull String gitApiUrl) {
+        String endpoint = Util.fixEmpty(gitApiUrl);
+        for (Iterator<Key> it = clients.keySet().iterator(); it.hasNext();) {
+            Key key = it.next();
+            if (key.credentialsId.equals(credentialsId) && Util.fixNull(key.gitApiUrl).equals(Util.fixNull(endpoint))) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets every client, so the next notifications use the current connection settings.
+     */
+    void clear() {
+        clients.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getSize() {
+        return clients.size();
+    }
+
+    /**
+     * Removes the clients that have not been used for longer than {@link #IDLE_TIMEOUT_MILLIS}.
+     */
+    void evictIdle() {
+        long threshold = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+        for (Iterator<CachedClient> it = clients.values().iterator(); it.hasNext();) {
+            if (it.next().lastAccess < threshold) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A credential with the same id but a different secret means it was rotated, the old client is useless.
+     */
+    private void dropRotated(Key key) {
+        for (Iterator<Key> it = clients.keySet().iterator(); it.hasNext();) {
+            Key other = it.next();
+            if (other.sameTarget(key) && !other.fingerprint.equals(key.fingerprint)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static String fingerprint(String username, Secret secret) {
+        return Util.getDigestOf(username + ':' + secret.getPlainText());
+    }
+
+    /**
+     * Builds a new client when there is no cached one.
+     */
+    interface ClientFactory {
+        @Nonnull
+        GitHub create() throws IOException;
+    }
+
+    private static final class Key {
+        private final String credentialsId;
+        private final String installation;
+        private final String fingerprint;
+        private final String gitApiUrl;
+        private final Proxy proxy;
+
+        Key(String credentialsId, String installation, String fingerprint, String gitApiUrl, Proxy proxy) {
+            this.credentialsId = credentialsId;
+            this.installation = installation;
+            this.fingerprint = fingerprint;
+            this.gitApiUrl = gitApiUrl;
+            this.proxy = proxy;
+        }
+
+        boolean sameTarget(Key other) {
+            return credentialsId.equals(other.credentialsId) && installation.equals(other.installation)
+                    && Util.fixNull(gitApiUrl).equals(Util.fixNull(other.gitApiUrl)) && proxy.equals(other.proxy);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sameTarget(other) && fingerprint.equals(other.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = credentialsId.hashCode();
+            result = 31 * result + installation.hashCode();
+            result = 31 * result + fingerprint.hashCode();
+            result = 31 * result + Util.fixNull(gitApiUrl).hashCode();
+            result = 31 * result + proxy.hashCode();
+            return result;
+        }
+    }
+
+    /**
+     * A cached client, remembering until when its credentials are known to be valid.
+     */
+    static final class CachedClient {
+        private final GitHub github;
+        private final ConcurrentMap<String, CompletableFuture<GHRepository>> repositories = new ConcurrentHashMap<>();
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile long validUntil;
+
+        CachedClient(GitHub github) {
+            this.github = github;
+        }
+
+        @Nonnull
+        GitHub getGitHub() {
+            return github;
+        }
+
+        /**
+         * Returns the repository handle, only asking GitHub for it the first time.
+         *
+         * Concurrent deliveries to a new repository wait for a single lookup, lookups of different repositories do not
+         * wait for each other.
+         *
+         * @return the repository or null if it does not exist
+         */
+        @CheckForNull
+        GHRepository getRepository(@Nonnull String owner, @Nonnull String name) throws IOException {
+            String fullName = owner + '/' + name;
+            CompletableFuture<GHRepository> lookup = repositories.get(fullName);
+            if (lookup == null) {
+                CompletableFuture<GHRepository> created = new CompletableFuture<>();
+                lookup = repositories.putIfAbsent(fullName, created);
+                if (lookup == null) {
+                    return lookUp(fullName, created);
+                }
+            }
+            try {
+                return lookup.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while looking up " + fullName);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        private GHRepository lookUp(String fullName, CompletableFuture<GHRepository> lookup) throws IOException {
+            GHRepository repository = null;
+            try {
+                repository = github.getRepository(fullName);
+            } catch (FileNotFoundException e) {
+                // does not exist
+            } catch (IOException | RuntimeException e) {
+                repositories.remove(fullName, lookup);
+                lookup.completeExceptionally(e);
+                throw e;
+            }
+            if (repository == null) {
+                // not cached, it may be created later
+                repositories.remove(fullName, lookup);
+            }
+            lookup.complete(repository);
+            return repository;
+        }
+
+        void forgetRepository(@Nonnull String owner, @Nonnull String name) {
+            repositories.remove(owner + '/' + name);
+        }
+
+        boolean isValidated() {
+            return System.currentTimeMillis() < validUntil;
+        }
+
+        void validated(long ttlMillis) {
+            validUntil = System.currentTimeMillis() + ttlMillis;
+        }
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Periodically drops the idle clients.
+     */
+    @Extension
+    public static final class IdleClientsSweeper extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(5);
+        }
+
+        @Override
+        protected void doRun() {
+            GitHubClientCache.get().evictIdle();
+        }
+    }
+}
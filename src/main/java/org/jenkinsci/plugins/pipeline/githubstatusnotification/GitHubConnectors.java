@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.Terminator;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.kohsuke.github.HttpConnector;
+import org.kohsuke.github.extras.okhttp3.OkHttpConnector;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds the connectors of the cached GitHub clients on top of a single HTTP client, with a bounded on-disk response
+ * cache under {@code $JENKINS_HOME/caches/github-notify}.
+ *
+ * Cached responses are always revalidated with {@code If-None-Match}, GitHub answers {@code 304 Not Modified} without
+ * a body and without counting the request against the rate limit. The oldest responses are evicted once the cache
+ * reaches {@link #CACHE_SIZE_MB}.
+ *
+ * Every connector shares the same connection pool and negotiates HTTP/2 when the server supports it, so concurrent
+ * notifications to the same host are multiplexed over a single connection. Timeouts come from
+ * {@link GitHubNotifyConfiguration}.
+ */
+@Extension
+public class GitHubConnectors {
+
+    private static final Logger LOGGER = Logger.getLogger(GitHubConnectors.class.getName());
+
+    static final long CACHE_SIZE_MB = SystemProperties.getLong(GitHubConnectors.class.getName() + ".cacheSizeMB", 20L);
+
+    static final int MAX_IDLE_CONNECTIONS = SystemProperties.getInteger(GitHubConnectors.class.getName() + ".maxIdleConnections", 10);
+
+    static final long KEEP_ALIVE_MINUTES = SystemProperties.getLong(GitHubConnectors.class.getName() + ".keepAliveMinutes", 5L);
+
+    private OkHttpClient baseClient;
+
+    @Nonnull
+    public static GitHubConnectors get() {
+        return ExtensionList.lookupSingleton(GitHubConnectors.class);
+    }
+
+    /**
+     * Returns a connector going through the given proxy with the configured timeouts, sharing the connection pool and
+     * cache of every other one.
+     */
+    @Nonnull
+    HttpConnector connector(@Nonnull Proxy proxy) {
+        GitHubNotifyConfiguration configuration = GitHubNotifyConfiguration.get();
+        OkHttpClient.Builder builder = getBaseClient().newBuilder()
+                .proxy(proxy)
+                .connectTimeout(configuration.getConnectTimeout(), TimeUnit.SECONDS)
+                .readTimeout(configuration.getReadTimeout(), TimeUnit.SECONDS)
+                .writeTimeout(configuration.getWriteTimeout(), TimeUnit.SECONDS);
+        if (!configuration.isHttp2()) {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        }
+        return new OkHttpConnector(builder.build());
+    }
+
+    private synchronized OkHttpClient getBaseClient() {
+        if (baseClient == null) {
+            OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                    .addNetworkInterceptor(chain -> {
+                        NotifyTrace.requestSent();
+                        return chain.proceed(chain.request());
+                    })
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+            if (CACHE_SIZE_MB > 0) {
+                File dir = new File(new File(Jenkins.get().getRootDir(), "caches"), "github-notify");
+                builder.cache(new Cache(dir, CACHE_SIZE_MB * 1024 * 1024));
+            }
+            baseClient = builder.build();
+        }
+        return baseClient;
+    }
+
+    synchronized void close() {
+        if (baseClient != null && baseClient.cache() != null) {
+            try {
+                baseClient.cache().close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close the GitHub response cache", e);
+            }
+        }
+        baseClient = null;
+    }
+
+    @Terminator
+    public static void shutdown() {
+        for (GitHubConnectors connectors : ExtensionList.lookup(GitHubConnectors.class)) {
+            connectors.close();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Controller wide settings of the {@code githubNotify} step.
+ */
+@Extension
+@Symbol("githubNotify")
+public class GitHubNotifyConfiguration extends GlobalConfiguration {
+
+    public static final long DEFAULT_CREDENTIALS_VALIDATION_TTL = 300;
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+
+    public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 30;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+
+    public static final int DEFAULT_READ_TIMEOUT = 30;
+
+    public static final int DEFAULT_WRITE_TIMEOUT = 30;
+
+    public static final String DEFAULT_STAGE_CONTEXT_PREFIX = "jenkins/stage/";
+
+    /**
+     * Seconds during which a successful credentials validation is trusted before checking them again.
+     */
+    private long credentialsValidationTtl = DEFAULT_CREDENTIALS_VALIDATION_TTL;
+    /**
+     * When set credentials are never validated upfront, an unauthorized response is reported as invalid credentials.
+     */
+    private boolean skipCredentialsValidation;
+    /**
+     * How many times a request rejected by the rate limits or by a server error is retried.
+     */
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    /**
+     * When set a status identical to the last one delivered for the same commit and context is not sent again.
+     */
+    private boolean skipDuplicateStatuses;
+    /**
+     * When set the start and end of each stage of the pipelines building GitHub sources is notified automatically.
+     */
+    private boolean stageStatuses;
+    /**
+     * Prepended to the stage name to build the context of its status.
+     */
+    private String stageContextPrefix = DEFAULT_STAGE_CONTEXT_PREFIX;
+    /**
+     * How many statuses can be sent at the same time to the same API endpoint.
+     */
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    /**
+     * Consecutive failures to reach an endpoint after which requests to it fail fast, 0 disables the circuit breaker.
+     */
+    private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+    /**
+     * Seconds requests to an unavailable endpoint fail fast before a probe request is sent.
+     */
+    private long circuitBreakerOpenSeconds = DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS;
+    /**
+     * Timeouts of the requests to GitHub, in seconds, 0 means no timeout.
+     */
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    /**
+     * When cleared only HTTP/1.1 is used, for proxies or GitHub Enterprise instances misbehaving with HTTP/2.
+     */
+    private boolean http2 = true;
+    /**
+     * Credentials usable under a single id, spreading the requests by rate limit headroom.
+     */
+    private List<CredentialsPool> credentialsPools = new ArrayList<>();
+    /**
+     * Set while the form is bound, and whether a connection setting changed meanwhile.
+     */
+    private transient boolean configuring;
+    private transient boolean connectionSettingsChanged;
+
+    public GitHubNotifyConfiguration() {
+        load();
+    }
+
+    @Nonnull
+    public static GitHubNotifyConfiguration get() {
+        return ExtensionList.lookupSingleton(GitHubNotifyConfiguration.class);
+    }
+
+    public long getCredentialsValidationTtl() {
+        return credentialsValidationTtl;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsValidationTtl(long credentialsValidationTtl) {
+        this.credentialsValidationTtl = Math.max(0, credentialsValidationTtl);
+    }
+
+    public boolean isSkipCredentialsValidation() {
+        return skipCredentialsValidation;
+    }
+
+    @DataBoundSetter
+    public void setSkipCredentialsValidation(boolean skipCredentialsValidation) {
+        this.skipCredentialsValidation = skipCredentialsValidation;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    @DataBoundSetter
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    public boolean isSkipDuplicateStatuses() {
+        return skipDuplicateStatuses;
+    }
+
+    @DataBoundSetter
+    public void setSkipDuplicateStatuses(boolean skipDuplicateStatuses) {
+        this.skipDuplicateStatuses = skipDuplicateStatuses;
+    }
+
+    public boolean isStageStatuses() {
+        return stageStatuses;
+    }
+
+    @DataBoundSetter
+    public void setStageStatuses(boolean stageStatuses) {
+        this.stageStatuses = stageStatuses;
+    }
+
+    @Nonnull
+    public String getStageContextPrefix() {
+        return stageContextPrefix == null ? DEFAULT_STAGE_CONTEXT_PREFIX : stageContextPrefix;
+    }
+
+    @DataBoundSetter
+    public void setStageContextPrefix(String stageContextPrefix) {
+        this.stageContextPrefix = Util.fixNull(stageContextPrefix);
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = Math.max(0, circuitBreakerThreshold);
+    }
+
+    public long getCircuitBreakerOpenSeconds() {
+        return circuitBreakerOpenSeconds;
+    }
+
+    @DataBoundSetter
+    public void setCircuitBreakerOpenSeconds(long circuitBreakerOpenSeconds) {
+        this.circuitBreakerOpenSeconds = Math.max(1, circuitBreakerOpenSeconds);
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeout(int connectTimeout) {
+        int value = Math.max(0, connectTimeout);
+        if (value != this.connectTimeout) {
+            this.connectTimeout = value;
+            connectionSettingsChanged();
+        }
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @DataBoundSetter
+    public void setReadTimeout(int readTimeout) {
+        int value = Math.max(0, readTimeout);
+        if (value != this.readTimeout) {
+            this.readTimeout = value;
+            connectionSettingsChanged();
+        }
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    @DataBoundSetter
+    public void setWriteTimeout(int writeTimeout) {
+        int value = Math.max(0, writeTimeout);
+        if (value != this.writeTimeout) {
+            this.writeTimeout = value;
+            connectionSettingsChanged();
+        }
+    }
+
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    @DataBoundSetter
+    public void setHttp2(boolean http2) {
+        if (http2 != this.http2) {
+            this.http2 = http2;
+            connectionSettingsChanged();
+        }
+    }
+
+    /**
+     * The cached clients keep the connector they were built with, they are rebuilt with the new settings. While the
+     * form is submitted they are only dropped once, after every setting is bound.
+     */
+    private void connectionSettingsChanged() {
+        if (configuring) {
+            connectionSettingsChanged = true;
+        } else {
+            GitHubClientCache.get().clear();
+        }
+    }
+
+    @Nonnull
+    public List<CredentialsPool> getCredentialsPools() {
+        return credentialsPools == null ? Collections.<CredentialsPool>emptyList() : Collections.unmodifiableList(credentialsPools);
+    }
+
+    @DataBoundSetter
+    public void setCredentialsPools(List<CredentialsPool> credentialsPools) {
+        this.credentialsPools = credentialsPools == null ? new ArrayList<CredentialsPool>() : new ArrayList<>(credentialsPools);
+    }
+
+    /**
+     * @return the pool with the given id, null if there is none
+     */
+    @CheckForNull
+    public CredentialsPool getCredentialsPool(@Nonnull String id) {
+        for (CredentialsPool pool : getCredentialsPools()) {
+            if (id.equals(pool.getId())) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Binds the whole form, then saves the configuration once.
+     */
+    @Override
+    public synchronized boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        // the form sends nothing when every pool was deleted
+        credentialsPools = new ArrayList<>();
+        configuring = true;
+        connectionSettingsChanged = false;
+        try {
+            super.configure(req, json);
+        } finally {
+            configuring = false;
+        }
+        save();
+        if (connectionSettingsChanged) {
+            GitHubClientCache.get().clear();
+        }
+        return true;
+    }
+
+    public FormValidation doCheckConnectTimeout(@QueryParameter int value) {
+        return checkTimeout(value);
+    }
+
+    public FormValidation doCheckReadTimeout(@QueryParameter int value) {
+        return checkTimeout(value);
+    }
+
+    public FormValidation doCheckWriteTimeout(@QueryParameter int value) {
+        return checkTimeout(value);
+    }
+
+    private static FormValidation checkTimeout(int value) {
+        return value < 0 ? FormValidation.error("Must be zero or a positive number of seconds") : FormValidation.ok();
+    }
+
+    public FormValidation doCheckCircuitBreakerThreshold(@QueryParameter int value) {
+        return value < 0 ? FormValidation.error("Must be zero or a positive number") : FormValidation.ok();
+    }
+
+    public FormValidation doCheckCircuitBreakerOpenSeconds(@QueryParameter long value) {
+        return value < 1 ? FormValidation.error("Must be a positive number of seconds") : FormValidation.ok();
+    }
+
+    public FormValidation doCheckMaxConcurrentRequests(@QueryParameter int value) {
+        return value < 1 ? FormValidation.error("Must be a positive number") : FormValidation.ok();
+    }
+
+    public FormValidation doCheckMaxRetries(@QueryParameter int value) {
+        return value < 0 ? FormValidation.error("Must be zero or a positive number") : FormValidation.ok();
+    }
+
+    public FormValidation doCheckCredentialsValidationTtl(@QueryParameter long value) {
+        return value < 0 ? FormValidation.error("Must be zero or a positive number of seconds") : FormValidation.ok();
+    }
+}
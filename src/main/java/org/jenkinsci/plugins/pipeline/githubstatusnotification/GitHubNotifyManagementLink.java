@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * The <em>GitHub Notify</em> page of <em>Manage Jenkins</em>, showing whether the GitHub endpoints are considered
+ * available and how the status deliveries are going, including the time spent in each phase of the notifications.
+ */
+@Extension
+public class GitHubNotifyManagementLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "network.png";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "githubNotify";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "GitHub Notify";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Availability of the GitHub endpoints and delivery of the commit statuses";
+    }
+
+    public CircuitBreakers getCircuitBreakers() {
+        return CircuitBreakers.get();
+    }
+
+    public StatusDeliveryQueue getQueue() {
+        return StatusDeliveryQueue.get();
+    }
+
+    public GitHubClientCache getClientCache() {
+        return GitHubClientCache.get();
+    }
+
+    public RateLimitScheduler getRateLimits() {
+        return RateLimitScheduler.get();
+    }
+
+    public NotifyMetrics getMetrics() {
+        return NotifyMetrics.get();
+    }
+
+    @RequirePOST
+    public HttpResponse doResetCircuitBreakers() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        CircuitBreakers.get().reset();
+        return HttpResponses.redirectToDot();
+    }
+}
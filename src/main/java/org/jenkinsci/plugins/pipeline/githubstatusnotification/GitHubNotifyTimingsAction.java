@@ -0,0 +1,273 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.github.GHCommitState;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The statuses delivered for a build, with the requests sent to GitHub and where the time went, so slow notifications
+ * can be told apart from a slow build.
+ */
+public class GitHubNotifyTimingsAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(GitHubNotifyTimingsAction.class.getName());
+
+    /**
+     * Deliveries kept per build, the oldest ones are dropped.
+     */
+    static final int MAX_ENTRIES = 500;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    private transient Run<?, ?> run;
+
+    /**
+     * Records a delivery in the build that sent the status.
+     */
+    static void record(@Nonnull StatusNotification notification, @Nonnull NotifyTrace trace, @CheckForNull String error,
+                       @CheckForNull RateLimitScheduler.Bucket bucket) {
+        Run<?, ?> run = notification.getRun();
+        if (run == null) {
+            return;
+        }
+        GitHubNotifyTimingsAction action;
+        synchronized (run) {
+            action = run.getAction(GitHubNotifyTimingsAction.class);
+            if (action == null) {
+                action = new GitHubNotifyTimingsAction();
+                run.addAction(action);
+            }
+        }
+        action.add(new Entry(notification, trace, error, bucket));
+        if (!run.isBuilding()) {
+            // a running build is saved when it completes
+            try {
+                run.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to save " + run, e);
+            }
+        }
+    }
+
+    private synchronized void add(Entry entry) {
+        if (entries.size() >= MAX_ENTRIES) {
+            entries.remove(0);
+        }
+        entries.add(entry);
+    }
+
+    @Nonnull
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public synchronized int getRequests() {
+        int requests = 0;
+        for (Entry entry : entries) {
+            requests += entry.requests;
+        }
+        return requests;
+    }
+
+    public synchronized int getRetries() {
+        int retries = 0;
+        for (Entry entry : entries) {
+            retries += entry.retries;
+        }
+        return retries;
+    }
+
+    public synchronized long getTotalMillis() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.totalMillis;
+        }
+        return total;
+    }
+
+    public synchronized long getRateLimitWaitMillis() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.rateLimitWaitMillis;
+        }
+        return total;
+    }
+
+    @CheckForNull
+    public synchronized Entry getSlowest() {
+        Entry slowest = null;
+        for (Entry entry : entries) {
+            if (slowest == null || entry.totalMillis > slowest.totalMillis) {
+                slowest = entry;
+            }
+        }
+        return slowest;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "network.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "GitHub Notifications";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "githubNotify";
+    }
+
+    /**
+     * A single delivery.
+     */
+    public static final class Entry {
+        private final long timestamp;
+        private final String context;
+        private final GHCommitState state;
+        private final String sha;
+        private final String credentialsId;
+        private final String error;
+        private final long totalMillis;
+        private final int requests;
+        private final int retries;
+        private final long rateLimitWaitMillis;
+        private final int rateLimitRemaining;
+        private final int rateLimit;
+        private final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+
+        Entry(StatusNotification notification, NotifyTrace trace, String error, RateLimitScheduler.Bucket bucket) {
+            this.timestamp = System.currentTimeMillis();
+            this.context = notification.getContext();
+            this.state = notification.getState();
+            this.sha = notification.getSha();
+            this.credentialsId = trace.getCredentialsId() == null ? notification.getCredentialsId() : trace.getCredentialsId();
+            this.error = error;
+            this.totalMillis = TimeUnit.NANOSECONDS.toMillis(trace.getElapsedNanos());
+            this.requests = trace.getRequests();
+            this.retries = trace.getRetries();
+            this.rateLimitWaitMillis = trace.getRateLimitWaitMillis();
+            this.rateLimitRemaining = bucket == null ? -1 : bucket.getRemaining();
+            this.rateLimit = bucket == null ? -1 : bucket.getLimit();
+            for (Map.Entry<NotifyMetrics.Phase, Long> phase : trace.getPhaseNanos().entrySet()) {
+                phaseMillis.put(phase.getKey().name().toLowerCase(), TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+            }
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getContext() {
+            return context;
+        }
+
+        public GHCommitState getState() {
+            return state;
+        }
+
+        public String getSha() {
+            return sha;
+        }
+
+        /**
+         * @return the credentials the status was sent with, a member when it was sent through a {@link CredentialsPool}
+         */
+        public String getCredentialsId() {
+            return credentialsId;
+        }
+
+        /**
+         * @return why the delivery failed, null if it succeeded
+         */
+        @CheckForNull
+        public String getError() {
+            return error;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public int getRequests() {
+            return requests;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+
+        public long getRateLimitWaitMillis() {
+            return rateLimitWaitMillis;
+        }
+
+        /**
+         * @return requests left after the delivery, -1 if GitHub did not tell
+         */
+        public int getRateLimitRemaining() {
+            return rateLimitRemaining;
+        }
+
+        public int getRateLimit() {
+            return rateLimit;
+        }
+
+        /**
+         * @return milliseconds spent in each phase, by phase name
+         */
+        @Nonnull
+        public Map<String, Long> getPhaseMillis() {
+            return Collections.unmodifiableMap(phaseMillis);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.ListBoxModel;
+import org.jenkinsci.plugins.displayurlapi.DisplayURLProvider;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.github.GHCommitState;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A pipeline step that sends several commit statuses, with different contexts, to the same commit.
+ *
+ * The repository, commit and credentials are resolved once for the whole batch, then the statuses are delivered
+ * concurrently. The step returns the result of each context, {@link #DELIVERED} or the failure message.
+ */
+public final class GitHubStatusBatchStep extends AbstractStepImpl {
+
+    public static final String DELIVERED = "OK";
+
+    public static final String NULL_CONTEXT = "Every status of the batch must have a context";
+
+    public static final String DUPLICATED_CONTEXT = "Several statuses of the batch have the context ";
+
+    /**
+     * The statuses to send, the results are returned by context so each status has its own
+     */
+    private final List<Status> statuses;
+    /**
+     * The repository that owns the commit to notify
+     */
+    private String repo;
+    /**
+     * The commit to notify unique sha1, used as commit identifier
+     */
+    private String sha;
+    /**
+     * The optional GitHub enterprise instance api url endpoint.
+     */
+    private String gitApiUrl;
+    /**
+     * The id of the jenkins stored credentials to use to connect to GitHub, must identify a UsernamePassword credential
+     */
+    private String credentialsId;
+    /**
+     * The GitHub's account that owns the repo to notify
+     */
+    private String account;
+    /**
+     * The target URL of the statuses that do not specify one.
+     */
+    private String targetUrl;
+    /**
+     * Whether to check that the repository and commit exist before sending the statuses.
+     */
+    private boolean validate;
+
+    @DataBoundConstructor
+    public GitHubStatusBatchStep(List<Status> statuses) {
+        this.statuses = statuses == null ? Collections.<Status>emptyList() : new ArrayList<>(statuses);
+        Set<String> contexts = new HashSet<>();
+        for (Status status : this.statuses) {
+            if (Util.fixEmpty(status.getContext()) == null) {
+                throw new IllegalArgumentException(NULL_CONTEXT);
+            }
+            if (!contexts.add(status.getContext())) {
+                throw new IllegalArgumentException(DUPLICATED_CONTEXT + status.getContext());
+            }
+        }
+    }
+
+    @DataBoundSetter
+    public void setGitApiUrl(String gitApiUrl) {
+        this.gitApiUrl = gitApiUrl;
+    }
+
+    @DataBoundSetter
+    public void setTargetUrl(String targetUrl) {
+        this.targetUrl = targetUrl;
+    }
+
+    @DataBoundSetter
+    public void setRepo(String repo) {
+        this.repo = repo;
+    }
+
+    @DataBoundSetter
+    public void setSha(String sha) {
+        this.sha = sha;
+    }
+
+    @DataBoundSetter
+    public void setAccount(String account) {
+        this.account = account;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = Util.fixEmpty(credentialsId);
+    }
+
+    @DataBoundSetter
+    public void setValidate(boolean validate) {
+        this.validate = validate;
+    }
+
+    public List<Status> getStatuses() {
+        return Collections.unmodifiableList(statuses);
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public String getSha() {
+        return sha;
+    }
+
+    public String getGitApiUrl() {
+        return gitApiUrl;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public String getTargetUrl() {
+        return targetUrl;
+    }
+
+    public boolean isValidate() {
+        return validate;
+    }
+
+    /**
+     * One of the statuses of the batch.
+     */
+    public static final class Status extends AbstractDescribableImpl<Status> {
+
+        private final String context;
+        private final GHCommitState status;
+        private final String description;
+        private String targetUrl;
+
+        @DataBoundConstructor
+        public Status(String context, GHCommitState status, String description) {
+            this.context = context;
+            this.status = status;
+            this.description = description;
+        }
+
+        @DataBoundSetter
+        public void setTargetUrl(String targetUrl) {
+            this.targetUrl = Util.fixEmpty(targetUrl);
+        }
+
+        public String getContext() {
+            return context;
+        }
+
+        public GHCommitState getStatus() {
+            return status;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getTargetUrl() {
+            return targetUrl;
+        }
+
+        @Extension
+        public static final class DescriptorImpl extends Descriptor<Status> {
+
+            @Override
+            public String getDisplayName() {
+                return "Status";
+            }
+
+            public ListBoxModel doFillStatusItems() {
+                ListBoxModel list = new ListBoxModel();
+                for (GHCommitState state : GHCommitState.values()) {
+                    list.add(state.name(), state.name());
+                }
+                return list;
+            }
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "githubNotifyBatch";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Notifies GitHub of several statuses of a commit";
+        }
+    }
+
+    public static final class Execution extends AbstractSynchronousNonBlockingStepExecution<Map<String, String>> {
+
+        @Inject
+        private transient GitHubStatusBatchStep step;
+
+        @StepContextParameter
+        private transient Run run;
+
+        @StepContextParameter
+        private transient TaskListener listener;
+
+        @Override
+        protected Map<String, String> run() throws Exception {
+            String credentialsId = step.getCredentialsId() != null ? step.getCredentialsId() : GitHubStatusNotificationStep.Execution.tryToInferCredentialsId(run);
+            String account = Util.fixEmpty(step.getAccount()) != null ? step.getAccount() : GitHubStatusNotificationStep.Execution.tryToInferAccount(run);
+            String repo = Util.fixEmpty(step.getRepo()) != null ? step.getRepo() : GitHubStatusNotificationStep.Execution.tryToInferRepo(run);
+            String sha = Util.fixEmpty(step.getSha()) != null ? step.getSha() : GitHubStatusNotificationStep.Execution.tryToInferSha(run);
+            String gitApiUrl = step.getGitApiUrl();
+            if (step.isValidate() || !GitHubStatusNotificationStep.isFullSha(sha)) {
+                // resolve once, every status is then sent with a single request
+                sha = GitHubStatusNotificationStep.getCommitIfValid(credentialsId, gitApiUrl, account, repo, sha, run.getParent()).getSHA1();
+            }
+            String defaultTargetUrl = Util.fixEmpty(step.getTargetUrl()) != null ? step.getTargetUrl() : DisplayURLProvider.get().getRunURL(run);
+
+            StatusDeliveryQueue queue = StatusDeliveryQueue.get();
+            Map<String, Future<Void>> deliveries = new LinkedHashMap<>();
+            for (Status status : step.getStatuses()) {
+                String targetUrl = status.getTargetUrl() != null ? status.getTargetUrl() : defaultTargetUrl;
+                deliveries.put(status.getContext(), queue.enqueue(new StatusNotification(run, credentialsId, gitApiUrl,
+                        account, repo, sha, status.getStatus(), status.getDescription(), status.getContext(), targetUrl, false)));
+            }
+            Map<String, String> results = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<Void>> delivery : deliveries.entrySet()) {
+                try {
+                    delivery.getValue().get();
+                    results.put(delivery.getKey(), DELIVERED);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    String message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+                    listener.error("Unable to notify GitHub status '" + delivery.getKey() + "': " + message);
+                    results.put(delivery.getKey(), message);
+                }
+            }
+            return results;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
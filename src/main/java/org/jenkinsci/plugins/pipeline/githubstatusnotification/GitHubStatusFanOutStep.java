@@ -0,0 +1,429 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import org.jenkinsci.plugins.displayurlapi.DisplayURLProvider;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.github.GHCommit;
+import org.kohsuke.github.GHCommitState;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A pipeline step that sends the same commit status to several commits, possibly of different repositories.
+ *
+ * The targets are grouped by API endpoint and credentials: each group validates its credentials once, shares the same
+ * cached client and resolves each repository once, then the commits are resolved and their statuses delivered in
+ * parallel, at most {@link #getParallelism()} at a time. The step returns the result of each target,
+ * {@link GitHubStatusBatchStep#DELIVERED} or the failure message. A commit listed twice is notified once, unless it
+ * is listed with different credentials or API endpoints, which fails the step.
+ */
+public final class GitHubStatusFanOutStep extends AbstractStepImpl {
+
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * The commits to notify
+     */
+    private final List<Target> targets;
+    /**
+     * The status to send to every commit
+     */
+    private final GHCommitState status;
+    /**
+     * The status description
+     */
+    private final String description;
+    /**
+     * The status context
+     */
+    private String context = GitHubStatusNotificationStep.DescriptorImpl.context;
+    /**
+     * The optional GitHub enterprise instance api url endpoint of the targets that do not specify one.
+     */
+    private String gitApiUrl;
+    /**
+     * The id of the jenkins stored credentials of the targets that do not specify one.
+     */
+    private String credentialsId;
+    /**
+     * The target URL of the statuses.
+     */
+    private String targetUrl;
+    /**
+     * Whether to check that the repositories and commits exist before sending the statuses.
+     */
+    private boolean validate;
+    /**
+     * How many statuses are delivered at the same time.
+     */
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    @DataBoundConstructor
+    public GitHubStatusFanOutStep(List<Target> targets, GHCommitState status, String description) {
+        this.targets = targets == null ? Collections.<Target>emptyList() : new ArrayList<>(targets);
+        this.status = status;
+        this.description = description;
+    }
+
+    @DataBoundSetter
+    public void setContext(String context) {
+        this.context = context;
+    }
+
+    @DataBoundSetter
+    public void setGitApiUrl(String gitApiUrl) {
+        this.gitApiUrl = gitApiUrl;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = Util.fixEmpty(credentialsId);
+    }
+
+    @DataBoundSetter
+    public void setTargetUrl(String targetUrl) {
+        this.targetUrl = targetUrl;
+    }
+
+    @DataBoundSetter
+    public void setValidate(boolean validate) {
+        this.validate = validate;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public List<Target> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    public GHCommitState getStatus() {
+        return status;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public String getGitApiUrl() {
+        return gitApiUrl;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getTargetUrl() {
+        return targetUrl;
+    }
+
+    public boolean isValidate() {
+        return validate;
+    }
+
+    public int getParallelism() {
+        return parallelism < 1 ? 1 : parallelism;
+    }
+
+    /**
+     * One of the commits to notify.
+     */
+    public static final class Target extends AbstractDescribableImpl<Target> {
+
+        private final String account;
+        private final String repo;
+        private final String sha;
+        private String credentialsId;
+        private String gitApiUrl;
+
+        @DataBoundConstructor
+        public Target(String account, String repo, String sha) {
+            this.account = account;
+            this.repo = repo;
+            this.sha = sha;
+        }
+
+        @DataBoundSetter
+        public void setCredentialsId(String credentialsId) {
+            this.credentialsId = Util.fixEmpty(credentialsId);
+        }
+
+        @DataBoundSetter
+        public void setGitApiUrl(String gitApiUrl) {
+            this.gitApiUrl = Util.fixEmpty(gitApiUrl);
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public String getRepo() {
+            return repo;
+        }
+
+        public String getSha() {
+            return sha;
+        }
+
+        public String getCredentialsId() {
+            return credentialsId;
+        }
+
+        public String getGitApiUrl() {
+            return gitApiUrl;
+        }
+
+        @Override
+        public String toString() {
+            return account + '/' + repo + '@' + sha;
+        }
+
+        @Extension
+        public static final class DescriptorImpl extends Descriptor<Target> {
+
+            @Override
+            public String getDisplayName() {
+                return "Target";
+            }
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "githubNotifyFanOut";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Notifies GitHub of the same status on several commits";
+        }
+
+        public ListBoxModel doFillStatusItems() {
+            ListBoxModel list = new ListBoxModel();
+            for (GHCommitState state : GHCommitState.values()) {
+                list.add(state.name(), state.name());
+            }
+            return list;
+        }
+
+        public FormValidation doCheckParallelism(@QueryParameter int value) {
+            return value < 1 ? FormValidation.error("Must be at least 1") : FormValidation.ok();
+        }
+    }
+
+    public static final class Execution extends AbstractSynchronousNonBlockingStepExecution<Map<String, String>> {
+
+        @Inject
+        private transient GitHubStatusFanOutStep step;
+
+        @StepContextParameter
+        private transient Run run;
+
+        @StepContextParameter
+        private transient TaskListener listener;
+
+        private transient String inferredCredentialsId;
+
+        @Override
+        protected Map<String, String> run() throws Exception {
+            Map<String, Group> groups = new LinkedHashMap<>();
+            Map<String, String> keys = new HashMap<>();
+            for (Target target : step.getTargets()) {
+                String credentialsId = target.getCredentialsId() != null ? target.getCredentialsId() : getCredentialsId();
+                String gitApiUrl = target.getGitApiUrl() != null ? target.getGitApiUrl() : Util.fixEmpty(step.getGitApiUrl());
+                String key = Util.fixNull(gitApiUrl) + ' ' + credentialsId;
+                String previous = keys.put(target.toString(), key);
+                if (previous != null) {
+                    // the results are by commit, a commit listed twice gets a single status
+                    if (!previous.equals(key)) {
+                        throw new AbortException(target + " is listed twice with different credentials or API endpoints");
+                    }
+                    continue;
+                }
+                Group group = groups.get(key);
+                if (group == null) {
+                    group = new Group(credentialsId, gitApiUrl);
+                    groups.put(key, group);
+                }
+                group.targets.add(target);
+            }
+            String targetUrl = Util.fixEmpty(step.getTargetUrl()) != null ? step.getTargetUrl() : DisplayURLProvider.get().getRunURL(run);
+
+            // the commits are resolved on the delivery threads too, so the lookups are as parallel as the statuses
+            StatusDeliveryQueue queue = StatusDeliveryQueue.get();
+            Semaphore permits = new Semaphore(step.getParallelism());
+            Map<String, CompletableFuture<Void>> deliveries = new HashMap<>();
+            for (Group group : groups.values()) {
+                for (Target target : group.targets) {
+                    permits.acquire();
+                    CompletableFuture<String> sha = new CompletableFuture<>();
+                    queue.executeLookup(() -> {
+                        try {
+                            sha.complete(group.resolve(target, run.getParent(), step.isValidate()));
+                        } catch (IOException | RuntimeException e) {
+                            sha.completeExceptionally(e);
+                        }
+                    });
+                    CompletableFuture<Void> delivery = sha.thenCompose(resolved -> queue.enqueue(new StatusNotification(run,
+                            group.credentialsId, group.gitApiUrl, target.getAccount(), target.getRepo(), resolved, step.getStatus(),
+                            step.getDescription(), step.getContext(), targetUrl, false)));
+                    delivery.whenComplete((result, failure) -> permits.release());
+                    deliveries.put(target.toString(), delivery);
+                }
+            }
+
+            Map<String, String> results = new LinkedHashMap<>();
+            for (Target target : step.getTargets()) {
+                String key = target.toString();
+                if (results.containsKey(key)) {
+                    continue;
+                }
+                String failure = null;
+                try {
+                    deliveries.get(key).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failure = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+                }
+                if (failure != null) {
+                    listener.error("Unable to notify GitHub status of " + key + ": " + failure);
+                }
+                results.put(key, failure != null ? failure : GitHubStatusBatchStep.DELIVERED);
+            }
+            return results;
+        }
+
+        private String getCredentialsId() {
+            if (step.getCredentialsId() != null) {
+                return step.getCredentialsId();
+            }
+            if (inferredCredentialsId == null) {
+                inferredCredentialsId = GitHubStatusNotificationStep.Execution.tryToInferCredentialsId(run);
+            }
+            return inferredCredentialsId;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * The targets sharing an API endpoint and credentials, so they share a client and its repository handles. Its
+     * targets are resolved in parallel, only the repository lookups wait for each other.
+     */
+    private static final class Group {
+        private final String credentialsId;
+        private final String gitApiUrl;
+        private final List<Target> targets = new ArrayList<>();
+        private final Map<String, GHRepository> repositories = new HashMap<>();
+        private IllegalArgumentException invalidCredentials;
+
+        Group(String credentialsId, String gitApiUrl) {
+            this.credentialsId = credentialsId;
+            this.gitApiUrl = gitApiUrl;
+        }
+
+        /**
+         * Returns the full hash of the target commit, only asking GitHub for it when validating or for a short hash.
+         */
+        String resolve(Target target, Item context, boolean validate) throws IOException {
+            if (!validate && GitHubStatusNotificationStep.isFullSha(target.getSha())) {
+                return target.getSha();
+            }
+            GHRepository repository = getRepository(target, context, validate);
+            GHCommit commit = CircuitBreakers.get().call(gitApiUrl,
+                    () -> NotifyMetrics.time(NotifyMetrics.Phase.COMMIT, gitApiUrl, () -> repository.getCommit(target.getSha())));
+            if (commit == null) {
+                throw new IllegalArgumentException(GitHubStatusNotificationStep.INVALID_COMMIT);
+            }
+            return commit.getSHA1();
+        }
+
+        /**
+         * Credentials are only validated for the first repository of the group, the following ones reuse the client,
+         * and invalid credentials fail the rest of the group without asking GitHub again.
+         */
+        private synchronized GHRepository getRepository(Target target, Item context, boolean validate) throws IOException {
+            if (invalidCredentials != null) {
+                throw invalidCredentials;
+            }
+            String fullName = target.getAccount() + '/' + target.getRepo();
+            GHRepository repository = repositories.get(fullName);
+            if (repository == null) {
+                boolean forceValidation = validate && repositories.isEmpty();
+                try {
+                    repository = CircuitBreakers.get().call(gitApiUrl, () -> GitHubStatusNotificationStep.getCachedRepoIfValid(
+                            credentialsId, gitApiUrl, target.getAccount(), target.getRepo(), context, forceValidation));
+                } catch (IllegalArgumentException e) {
+                    if (!GitHubStatusNotificationStep.INVALID_REPO.equals(e.getMessage())) {
+                        invalidCredentials = e;
+                    }
+                    throw e;
+                }
+                repositories.put(fullName, repository);
+            }
+            return repository;
+        }
+    }
+}
@@ -23,57 +23,53 @@
  */
 package org.jenkinsci.plugins.pipeline.githubstatusnotification;
 
-import com.cloudbees.plugins.credentials.Credentials;
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.AbstractIdCredentialsListBoxModel;
 import com.cloudbees.plugins.credentials.common.IdCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.Util;
 import hudson.model.Item;
-import hudson.model.ItemGroup;
 import hudson.model.Run;
-import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.Secret;
 import jenkins.model.Jenkins;
-import jenkins.plugins.git.AbstractGitSCMSource;
-import jenkins.scm.api.SCMRevision;
-import jenkins.scm.api.SCMRevisionAction;
-import jenkins.scm.api.SCMSource;
-import jenkins.scm.api.SCMSourceOwner;
 import org.jenkinsci.plugins.displayurlapi.DisplayURLProvider;
-import org.jenkinsci.plugins.github_branch_source.GitHubSCMSource;
-import org.jenkinsci.plugins.github_branch_source.PullRequestSCMRevision;
+import org.jenkinsci.plugins.github_branch_source.GitHubAppCredentials;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
-import org.jenkinsci.plugins.workflow.steps.AbstractSynchronousNonBlockingStepExecution;
 import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
 import org.kohsuke.github.GHCommit;
 import org.kohsuke.github.GHCommitState;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GitHub;
 import org.kohsuke.github.GitHubBuilder;
+import org.kohsuke.github.HttpException;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.Proxy;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-
-import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
- * A pipeline step that allows to send a commit status to GitHub.
+ * A pipeline step that allows to send a commit status to GitHub, or to create and update a check run.
  *
  * See <a href="https://developer.github.com/v3/repos/statuses/">GitHub's Statuses API</a>
  */
@@ -85,6 +81,16 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
     public static final String INVALID_REPO = "The specified repository does not exist for the specified account";
     public static final String INVALID_COMMIT = "The specified commit does not exist in the specified repository";
 
+    private static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+
+    /**
+     * Part of the message of the 422 answer GitHub sends for an unknown commit, other 422 answers like reaching the
+     * limit of statuses of a commit are reported as they are.
+     */
+    private static final String NO_COMMIT_FOUND = "No commit found";
+
+    private static final Pattern FULL_SHA = Pattern.compile("[0-9a-fA-F]{40}");
+
     /**
      * The commit status to send with the notification
      */
@@ -125,6 +131,27 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
      * This URL will be linked from the GitHub UI to allow users to easily see the 'source' of the Status.
      */
     private String targetUrl = DescriptorImpl.targetUrl;
+    /**
+     * Whether to check that the repository and commit exist before sending the status, as the step always did.
+     *
+     * When turned off and the sha is a full commit hash the status is sent straight away, GitHub rejects it if the
+     * repository or commit do not exist.
+     */
+    private boolean validate = DescriptorImpl.validate;
+    /**
+     * Whether the step waits for GitHub to accept the status.
+     *
+     * When not set the status is queued for delivery and the pipeline moves on, see {@link StatusDeliveryQueue}.
+     */
+    private boolean wait = DescriptorImpl.wait;
+    /**
+     * Whether to create and update a check run named after the context instead of sending a commit status.
+     */
+    private boolean checkRun;
+    /**
+     * The annotations to append to the check run.
+     */
+    private List<CheckAnnotation> annotations;
 
     @DataBoundConstructor
     public GitHubStatusNotificationStep(GHCommitState status, String description) {
@@ -170,6 +197,26 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
         this.account = account;
     }
 
+    @DataBoundSetter
+    public void setValidate(boolean validate) {
+        this.validate = validate;
+    }
+
+    @DataBoundSetter
+    public void setWait(boolean wait) {
+        this.wait = wait;
+    }
+
+    @DataBoundSetter
+    public void setCheckRun(boolean checkRun) {
+        this.checkRun = checkRun;
+    }
+
+    @DataBoundSetter
+    public void setAnnotations(List<CheckAnnotation> annotations) {
+        this.annotations = annotations == null || annotations.isEmpty() ? null : new ArrayList<>(annotations);
+    }
+
     @DataBoundSetter
     public void setCredentialsId(String credentialsId) {
         this.credentialsId = Util.fixEmpty(credentialsId);
@@ -211,12 +258,24 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
         return this.targetUrl;
     }
 
-    private static <T extends Credentials> T getCredentials(@Nonnull Class<T> type, @Nonnull String credentialsId, Item context) {
-        return CredentialsMatchers.firstOrNull(lookupCredentials(
-                type, context, ACL.SYSTEM,
-                Collections.<DomainRequirement>emptyList()), CredentialsMatchers.allOf(
-                CredentialsMatchers.withId(credentialsId),
-                CredentialsMatchers.instanceOf(type)));
+    public boolean isValidate() {
+        return this.validate;
+    }
+
+    public boolean isWait() {
+        return this.wait;
+    }
+
+    public boolean isCheckRun() {
+        return this.checkRun;
+    }
+
+    public List<CheckAnnotation> getAnnotations() {
+        return this.annotations == null ? Collections.<CheckAnnotation>emptyList() : Collections.unmodifiableList(this.annotations);
+    }
+
+    private static UsernamePasswordCredentials getCredentials(@Nonnull String credentialsId, Item context) {
+        return CredentialsIndex.get().find(context, credentialsId);
     }
 
     /**
@@ -237,50 +296,332 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
         }
     }
 
-    private static GitHub getGitHubIfValid(String credentialsId, String gitApiUrl, Item context) throws IOException {
-        if (credentialsId == null || credentialsId.isEmpty()) {
+    static GitHub getGitHubIfValid(String credentialsId, String gitApiUrl, String account, Item context) throws IOException {
+        return getClientIfValid(credentialsId, gitApiUrl, account, context, false).getGitHub();
+    }
+
+    /**
+     * Returns a cached client for the given credentials and endpoint.
+     *
+     * Credentials validation is skipped while a previous validation is still fresh, or at all when the global
+     * configuration says so, unless {@code forceValidation} is set.
+     *
+     * GitHub App credentials use an installation token of the app in the {@code account}, shared through
+     * {@link GitHubAppTokens}. They are never validated, minting the token already authenticated the app.
+     *
+     * A {@link CredentialsPool} id is resolved to the member with the most requests left.
+     */
+    static GitHubClientCache.CachedClient getClientIfValid(String requestedCredentialsId, String gitApiUrl, String account, Item context, boolean forceValidation) throws IOException {
+        if (requestedCredentialsId == null || requestedCredentialsId.isEmpty()) {
             throw new IllegalArgumentException(NULL_CREDENTIALS_ID);
         }
-        UsernamePasswordCredentials credentials = getCredentials(UsernamePasswordCredentials.class, credentialsId, context);
+        final String credentialsId = CredentialsPool.resolve(requestedCredentialsId, gitApiUrl);
+        final UsernamePasswordCredentials credentials = NotifyMetrics.time(NotifyMetrics.Phase.CREDENTIALS, gitApiUrl,
+                () -> getCredentials(credentialsId, context));
         if (credentials == null) {
             throw new IllegalArgumentException(CREDENTIALS_ID_NOT_EXISTS);
         }
+        final String endpoint = Util.fixEmpty(gitApiUrl);
+        final Proxy proxy = getProxy(endpoint == null ? "https://api.github.com" : endpoint);
+        final boolean app = credentials instanceof GitHubAppCredentials;
+        final String installation = app ? Util.fixEmpty(account) : null;
+        final Secret token = !app ? credentials.getPassword() : NotifyMetrics.time(NotifyMetrics.Phase.CREDENTIALS, gitApiUrl,
+                () -> GitHubAppTokens.get().token(credentialsId, (GitHubAppCredentials) credentials, installation));
+
+        GitHubClientCache cache = GitHubClientCache.get();
+        GitHubClientCache.CachedClient client = NotifyMetrics.time(NotifyMetrics.Phase.CLIENT, endpoint,
+                () -> cache.getOrCreate(credentialsId, installation, credentials.getUsername(), token, endpoint, proxy,
+                        () -> buildClient(credentialsId, credentials.getUsername(), token, endpoint, proxy)));
+
+        GitHubNotifyConfiguration configuration = GitHubNotifyConfiguration.get();
+        if (app || (!forceValidation && (configuration.isSkipCredentialsValidation() || client.isValidated()))) {
+            return client;
+        }
+        if (NotifyMetrics.time(NotifyMetrics.Phase.VALIDATION, endpoint, () -> client.getGitHub().isCredentialValid())) {
+            client.validated(TimeUnit.SECONDS.toMillis(configuration.getCredentialsValidationTtl()));
+            return client;
+        } else {
+            cache.invalidate(credentialsId, endpoint);
+            throw new IllegalArgumentException(CREDENTIALS_LOGIN_INVALID);
+        }
+    }
+
+    private static GitHub buildClient(String credentialsId, String username, Secret token, String endpoint, Proxy proxy) throws IOException {
         GitHubBuilder githubBuilder = new GitHubBuilder();
 
-        githubBuilder.withOAuthToken(credentials.getPassword().getPlainText(), credentials.getUsername());
+        githubBuilder.withOAuthToken(token.getPlainText(), username);
 
-        if (gitApiUrl == null || gitApiUrl.isEmpty()) {
-            githubBuilder = githubBuilder.withProxy(getProxy("https://api.github.com"));
-        } else {
-            githubBuilder = githubBuilder.withEndpoint(gitApiUrl);
-            githubBuilder = githubBuilder.withProxy(getProxy(gitApiUrl));
+        if (endpoint != null) {
+            githubBuilder = githubBuilder.withEndpoint(endpoint);
         }
+        githubBuilder = githubBuilder.withProxy(proxy);
+        githubBuilder.withConnector(GitHubConnectors.get().connector(proxy));
 
-        GitHub github = githubBuilder.build();
+        RateLimitScheduler.Bucket bucket = RateLimitScheduler.get().bucket(endpoint, credentialsId);
+        githubBuilder.withRateLimitHandler(bucket.rateLimitHandler());
+        githubBuilder.withAbuseLimitHandler(bucket.abuseLimitHandler());
 
-        if (github.isCredentialValid()) {
-            return github;
-        } else {
-            throw new IllegalArgumentException(CREDENTIALS_LOGIN_INVALID);
-        }
+        return githubBuilder.build();
     }
 
     private static GHRepository getRepoIfValid(String credentialsId, String gitApiUrl, String account, String repo, Item context) throws IOException {
-        GitHub github = getGitHubIfValid(credentialsId, gitApiUrl, context);
-        GHRepository repository = github.getUser(account).getRepository(repo);
+        return getRepoIfValid(getGitHubIfValid(credentialsId, gitApiUrl, account, context), gitApiUrl, account, repo);
+    }
+
+    private static GHRepository getRepoIfValid(GitHub github, String gitApiUrl, String account, String repo) throws IOException {
+        GHRepository repository = NotifyMetrics.time(NotifyMetrics.Phase.REPOSITORY, gitApiUrl,
+                () -> github.getUser(account).getRepository(repo));
         if (repository == null) {
             throw new IllegalArgumentException(INVALID_REPO);
         }
         return repository;
     }
 
-    private static GHCommit getCommitIfValid(String credentialsId, String gitApiUrl, String account, String repo, String sha, Item context) throws IOException {
-        GHRepository repository = getRepoIfValid(credentialsId, gitApiUrl, account, repo, context);
-        GHCommit commit = repository.getCommit(sha);
-        if (commit == null) {
-            throw new IllegalArgumentException(INVALID_COMMIT);
+    /**
+     * Resolves the repository through the cached client, so the following deliveries with that client reuse the handle.
+     */
+    static GHRepository getCachedRepoIfValid(String credentialsId, String gitApiUrl, String account, String repo, Item context,
+                                             boolean forceValidation) throws IOException {
+        GitHubClientCache.CachedClient client = getClientIfValid(credentialsId, gitApiUrl, account, context, forceValidation);
+        GHRepository repository = NotifyMetrics.time(NotifyMetrics.Phase.REPOSITORY, gitApiUrl,
+                () -> client.getRepository(account, repo));
+        if (repository == null) {
+            throw new IllegalArgumentException(INVALID_REPO);
+        }
+        return repository;
+    }
+
+    static GHCommit getCommitIfValid(String credentialsId, String gitApiUrl, String account, String repo, String sha, Item context) throws IOException {
+        return CircuitBreakers.get().call(gitApiUrl, () -> {
+            GHRepository repository = getRepoIfValid(credentialsId, gitApiUrl, account, repo, context);
+            GHCommit commit = NotifyMetrics.time(NotifyMetrics.Phase.COMMIT, gitApiUrl, () -> repository.getCommit(sha));
+            if (commit == null) {
+                throw new IllegalArgumentException(INVALID_COMMIT);
+            }
+            return commit;
+        });
+    }
+
+    /**
+     * Returns the full hash of the commit, only asking GitHub for it when given a short hash, so the statuses of a commit
+     * are queued for the same target whatever the form of its hash.
+     */
+    static String resolveSha(String credentialsId, String gitApiUrl, String account, String repo, String sha, Item context) throws IOException {
+        if (isFullSha(sha)) {
+            return sha;
+        }
+        return CircuitBreakers.get().call(gitApiUrl, () -> {
+            GHRepository repository = getCachedRepoIfValid(credentialsId, gitApiUrl, account, repo, context, false);
+            GHCommit commit;
+            try {
+                commit = NotifyMetrics.time(NotifyMetrics.Phase.COMMIT, gitApiUrl, () -> repository.getCommit(sha));
+            } catch (HttpException ex) {
+                checkCredentials(ex, credentialsId, gitApiUrl);
+                throw new IllegalArgumentException(INVALID_COMMIT, ex);
+            } catch (FileNotFoundException ex) {
+                throw new IllegalArgumentException(INVALID_COMMIT, ex);
+            }
+            if (commit == null) {
+                throw new IllegalArgumentException(INVALID_COMMIT);
+            }
+            return commit.getSHA1();
+        });
+    }
+
+    /**
+     * Sends a status, or updates a check run, on behalf of the job that created it. The delivery is paced and retried by
+     * the {@link RateLimitScheduler} and fails fast while the {@link CircuitBreakers} consider its endpoint unavailable.
+     * Once done it is recorded in the {@link GitHubNotifyTimingsAction} of the build.
+     *
+     * @throws RateLimitScheduler.Deferred if the delivery has to wait for the rate limit, to be sent again after the delay
+     */
+    static void send(@Nonnull Delivery delivery) throws IOException, RateLimitScheduler.Deferred {
+        final StatusNotification notification = delivery.notification;
+        String error = null;
+        NotifyTrace trace = delivery.trace;
+        if (trace == null) {
+            trace = delivery.trace = NotifyTrace.start();
+        } else {
+            trace.resume();
         }
-        return commit;
+        try {
+            final Item context = notification.getItem();
+            if (context == null) {
+                throw new IllegalStateException("The job " + notification.getJob() + " no longer exists");
+            }
+            final CheckRunDelivery checkRun = delivery.checkRun;
+            RateLimitScheduler.get().run(notification.getGitApiUrl(), notification.getCredentialsId(), delivery.progress,
+                    credentialsId -> CircuitBreakers.get().call(notification.getGitApiUrl(),
+                            () -> sendOnce(notification, checkRun, credentialsId, context)));
+        } catch (RateLimitScheduler.Deferred e) {
+            trace.suspend();
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            error = String.valueOf(e.getMessage());
+            record(notification, trace, error);
+            throw e;
+        }
+        record(notification, trace, null);
+    }
+
+    private static void record(StatusNotification notification, NotifyTrace trace, String error) {
+        trace.close();
+        NotifyMetrics.get().record(NotifyMetrics.Phase.DELIVERY, notification.getGitApiUrl(), error == null, trace.getElapsedNanos());
+        String credentialsId = trace.getCredentialsId();
+        GitHubNotifyTimingsAction.record(notification, trace, error, credentialsId == null ? null
+                : RateLimitScheduler.get().bucket(notification.getGitApiUrl(), credentialsId));
+    }
+
+    /**
+     * A status being delivered, kept while the delivery is deferred so it resumes with its attempts, trace and check run
+     * progress.
+     */
+    static final class Delivery {
+        private final StatusNotification notification;
+        private final RateLimitScheduler.Progress progress;
+        @CheckForNull
+        private final CheckRunDelivery checkRun;
+        @CheckForNull
+        private NotifyTrace trace;
+
+        Delivery(@Nonnull StatusNotification notification) {
+            this(notification, new RateLimitScheduler.Progress(), null);
+        }
+
+        private Delivery(StatusNotification notification, RateLimitScheduler.Progress progress, NotifyTrace trace) {
+            this.notification = notification;
+            this.progress = progress;
+            this.checkRun = notification.isCheckRun() ? new CheckRunDelivery(notification) : null;
+            this.trace = trace;
+        }
+
+        @Nonnull
+        StatusNotification getNotification() {
+            return notification;
+        }
+
+        /**
+         * Continues a deferred delivery with a newer status for the same target, which replaced this one.
+         */
+        @Nonnull
+        Delivery supersededBy(@Nonnull StatusNotification newer) {
+            return new Delivery(newer, progress, trace);
+        }
+
+        /**
+         * Gives a deferred delivery up, it will not be sent again.
+         */
+        void abandon() {
+            progress.abandon();
+        }
+    }
+
+    /**
+     * Sends the status, or the check run when given one. With validation the credentials, repository and commit are
+     * checked first, on both paths.
+     */
+    private static GitHub sendOnce(StatusNotification notification, @CheckForNull CheckRunDelivery checkRun, String credentialsId,
+                                   Item context) throws IOException {
+        String gitApiUrl = notification.getGitApiUrl();
+        try {
+            if (!notification.isValidate() && (checkRun != null || isFullSha(notification.getSha()))) {
+                return sendWithoutValidation(notification, checkRun, credentialsId, context);
+            }
+            GitHub github = getGitHubIfValid(credentialsId, gitApiUrl, notification.getAccount(), context);
+            GHRepository repository = getRepoIfValid(github, gitApiUrl, notification.getAccount(), notification.getRepo());
+            GHCommit commit = null;
+            try {
+                commit = NotifyMetrics.time(NotifyMetrics.Phase.COMMIT, gitApiUrl, () -> repository.getCommit(notification.getSha()));
+            } catch (HttpException ex) {
+                checkCredentials(ex, credentialsId, gitApiUrl);
+                throw new IllegalArgumentException(INVALID_COMMIT, ex);
+            } catch (IOException ex) {
+                throw new IllegalArgumentException(INVALID_COMMIT, ex);
+            }
+            if (checkRun != null) {
+                checkRun.send(repository);
+            } else {
+                String sha = commit.getSHA1();
+                NotifyMetrics.time(NotifyMetrics.Phase.STATUS, gitApiUrl, () -> repository.createCommitStatus(sha,
+                        notification.getState(), notification.getTargetUrl(), notification.getDescription(), notification.getContext()));
+            }
+            return github;
+        } catch (FileNotFoundException ex) {
+            throw new IllegalArgumentException(INVALID_REPO, ex);
+        } catch (HttpException ex) {
+            checkResponse(ex, credentialsId, gitApiUrl);
+            throw ex;
+        }
+    }
+
+    /**
+     * Sends the status with a single request, or the check run, relying on GitHub to reject unknown repositories or
+     * commits.
+     *
+     * The repository handle is resolved once per client and cached, so in the steady state only the status is posted.
+     */
+    private static GitHub sendWithoutValidation(StatusNotification notification, @CheckForNull CheckRunDelivery checkRun,
+                                                String credentialsId, Item context) throws IOException {
+        String account = notification.getAccount();
+        String repo = notification.getRepo();
+        GitHubClientCache.CachedClient client = getClientIfValid(credentialsId, notification.getGitApiUrl(), account, context, false);
+        try {
+            GHRepository repository = NotifyMetrics.time(NotifyMetrics.Phase.REPOSITORY, notification.getGitApiUrl(),
+                    () -> client.getRepository(account, repo));
+            if (repository == null) {
+                throw new IllegalArgumentException(INVALID_REPO);
+            }
+            if (checkRun != null) {
+                checkRun.send(repository);
+            } else {
+                NotifyMetrics.time(NotifyMetrics.Phase.STATUS, notification.getGitApiUrl(), () -> repository.createCommitStatus(
+                        notification.getSha(), notification.getState(), notification.getTargetUrl(), notification.getDescription(),
+                        notification.getContext()));
+            }
+            return client.getGitHub();
+        } catch (FileNotFoundException ex) {
+            client.forgetRepository(account, repo);
+            throw new IllegalArgumentException(INVALID_REPO, ex);
+        } catch (HttpException ex) {
+            if (ex.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                client.forgetRepository(account, repo);
+            }
+            checkResponse(ex, credentialsId, notification.getGitApiUrl());
+            throw ex;
+        }
+    }
+
+    /**
+     * Maps the GitHub errors meaning invalid credentials, an unknown repository or an unknown commit to the same
+     * messages as the validation, any other error is left to the caller.
+     */
+    private static void checkResponse(HttpException ex, String credentialsId, String gitApiUrl) {
+        checkCredentials(ex, credentialsId, gitApiUrl);
+        if (ex.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new IllegalArgumentException(INVALID_REPO, ex);
+        }
+        if (isUnknownCommit(ex)) {
+            throw new IllegalArgumentException(INVALID_COMMIT, ex);
+        }
+    }
+
+    /**
+     * When credentials validation is skipped an unauthorized response is the only hint of invalid credentials.
+     */
+    private static void checkCredentials(HttpException ex, String credentialsId, String gitApiUrl) {
+        if (ex.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+            GitHubClientCache.get().invalidate(credentialsId, gitApiUrl);
+            GitHubAppTokens.get().invalidate(credentialsId);
+            throw new IllegalArgumentException(CREDENTIALS_LOGIN_INVALID, ex);
+        }
+    }
+
+    private static boolean isUnknownCommit(HttpException ex) {
+        return ex.getResponseCode() == HTTP_UNPROCESSABLE_ENTITY && Util.fixNull(ex.getMessage()).contains(NO_COMMIT_FOUND);
+    }
+
+    static boolean isFullSha(String sha1) {
+        return sha1 != null && FULL_SHA.matcher(sha1).matches();
     }
 
     @Extension
@@ -289,7 +630,16 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
         public static final String gitApiUrl = null;
         public static final String targetUrl = null;
         public static final String context = "jenkins/githubnotify";
+        public static final boolean validate = true;
+        public static final boolean wait = true;
 
+        private static final long REPO_TTL = TimeUnit.MINUTES.toMillis(10);
+        private static final long ERROR_TTL = TimeUnit.MINUTES.toMillis(1);
+
+        /**
+         * Results of the repository and commit checks of the configuration form.
+         */
+        private final transient ValidationCache validations = new ValidationCache(500);
 
         public DescriptorImpl() {
             super(Execution.class);
@@ -310,10 +660,13 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
             if (!project.hasPermission(Item.CONFIGURE)) {
                 return result;
             }
-            List<UsernamePasswordCredentials> credentialsList = CredentialsProvider.lookupCredentials(UsernamePasswordCredentials.class, project, ACL.SYSTEM);
+            List<UsernamePasswordCredentials> credentialsList = CredentialsIndex.get().list(project);
             for (UsernamePasswordCredentials credential : credentialsList) {
                 result = result.with((IdCredentials) credential);
             }
+            for (CredentialsPool pool : GitHubNotifyConfiguration.get().getCredentialsPools()) {
+                result.add("Credentials pool " + pool.getId(), pool.getId());
+            }
             return result;
         }
 
@@ -329,7 +682,7 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
         public FormValidation doTestConnection(@QueryParameter ("credentialsId") final String credentialsId, @QueryParameter ("gitApiUrl") final String gitApiUrl, @AncestorInPath Item context) {
             context.checkPermission(Item.CONFIGURE);
             try {
-                getGitHubIfValid(credentialsId, gitApiUrl, context);
+                getClientIfValid(credentialsId, gitApiUrl, null, context, true);
                 return FormValidation.ok("Success");
             } catch (Exception e) {
                 return FormValidation.error(e.getMessage());
@@ -340,33 +693,32 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
         public FormValidation doCheckRepo(@QueryParameter ("credentialsId") final String credentialsId,
                                           @QueryParameter ("repo") final String repo, @QueryParameter ("account") final String account, @QueryParameter ("gitApiUrl") final String gitApiUrl, @AncestorInPath Item context) {
             context.checkPermission(Item.CONFIGURE);
-            try {
-                getRepoIfValid(credentialsId, gitApiUrl, account, repo, context);
-                return FormValidation.ok("Success");
-            } catch (Exception e) {
-                return FormValidation.error(e.getMessage());
-            }
+            return validations.validate(ValidationCache.key("repo", gitApiUrl, credentialsId, context.getFullName(), account, repo),
+                    REPO_TTL, ERROR_TTL, () -> {
+                        CircuitBreakers.get().call(gitApiUrl, () -> getRepoIfValid(credentialsId, gitApiUrl, account, repo, context));
+                        return FormValidation.ok("Success");
+                    });
         }
 
         @RequirePOST
         public FormValidation doCheckSha(@QueryParameter ("credentialsId") final String credentialsId, @QueryParameter ("repo") final String repo,
                                          @QueryParameter ("sha") final String sha, @QueryParameter ("account") final String account, @QueryParameter ("gitApiUrl") final String gitApiUrl, @AncestorInPath Item context) {
             context.checkPermission(Item.CONFIGURE);
-            try {
-                getCommitIfValid(credentialsId, gitApiUrl, account, repo, sha, context);
-                return FormValidation.ok("Commit seems valid");
-
-            } catch (Exception e) {
-                return FormValidation.error(e.getMessage());
-            }
+            // a commit never changes once it exists
+            return validations.validate(ValidationCache.key("sha", gitApiUrl, credentialsId, context.getFullName(), account, repo, sha),
+                    ValidationCache.FOREVER, ERROR_TTL, () -> {
+                        getCommitIfValid(credentialsId, gitApiUrl, account, repo, sha, context);
+                        return FormValidation.ok("Commit seems valid");
+                    });
         }
     }
 
-    public static final class Execution extends AbstractSynchronousNonBlockingStepExecution<Void> {
+    public static final class Execution extends AbstractStepExecutionImpl {
 
         public static final String UNABLE_TO_INFER_DATA = "Unable to infer git data, please specify repo, credentialsId, account and sha values";
         public static final String UNABLE_TO_INFER_COMMIT = "Could not infer exact commit to use, please specify one";
         public static final String UNABLE_TO_INFER_CREDENTIALS_ID = "Can not infer exact credentialsId to use, please specify one";
+        public static final String NOT_QUEUED_BEFORE_RESTART = "Jenkins restarted before the status was queued, it was not sent";
 
         @Inject
         private transient GitHubStatusNotificationStep step;
@@ -374,23 +726,84 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
         @StepContextParameter
         private transient Run run;
 
+        /**
+         * The status waited for and its id in the {@link StatusOutbox}, kept so a resumed step knows what happened to it.
+         */
+        private StatusNotification notification;
+        private long outboxId;
+
+        /**
+         * Inferring the data and sending the status happen in background, the step completes when GitHub accepted the
+         * status, or straight away when not waiting for it.
+         */
         @Override
-        protected Void run() throws Exception {
-            String targetUrl = getTargetUrl();
-            String credentialsId = getCredentialsId();
-            String repo = getRepo();
-            String account = getAccount();
-            GHRepository repository = getRepoIfValid(credentialsId, step.getGitApiUrl(), account, repo, run.getParent());
-            String sha1 = getSha1();
-            GHCommit commit = null;
+        public boolean start() throws Exception {
+            StatusDeliveryQueue.get().execute(this::notifyStatus);
+            return false;
+        }
+
+        private void notifyStatus() {
+            StatusNotification notification;
             try {
-                commit = repository.getCommit(sha1);
-            } catch (IOException ex) {
-                throw new IllegalArgumentException(INVALID_COMMIT, ex);
+                String credentialsId = getCredentialsId();
+                String account = getAccount();
+                String repo = getRepo();
+                String sha = resolveSha(credentialsId, step.getGitApiUrl(), account, repo, getSha1(), run.getParent());
+                notification = new StatusNotification(run, credentialsId, step.getGitApiUrl(),
+                        account, repo, sha, step.getStatus(), step.getDescription(), step.getContext(),
+                        getTargetUrl(), step.isValidate(), step.isCheckRun(), step.getAnnotations());
+            } catch (IOException | RuntimeException e) {
+                getContext().onFailure(e);
+                return;
+            }
+            if (step.isWait()) {
+                this.outboxId = StatusOutbox.get().append(notification);
+                this.notification = notification;
+                await(StatusDeliveryQueue.get().enqueue(notification, outboxId));
+            } else {
+                StatusDeliveryQueue.get().submit(notification);
+                getContext().onSuccess(null);
+            }
+        }
+
+        @Override
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            getContext().onFailure(cause);
+        }
+
+        private void await(CompletableFuture<Void> delivery) {
+            delivery.whenComplete((result, failure) -> {
+                if (failure == null) {
+                    getContext().onSuccess(null);
+                } else {
+                    getContext().onFailure(failure);
+                }
+            });
+        }
+
+        /**
+         * Waits again for the status being delivered when the controller stopped, which the {@link StatusOutbox} also
+         * delivers again, or completes as it ended before the restart.
+         */
+        @Override
+        public void onResume() {
+            super.onResume();
+            if (notification == null) {
+                getContext().onFailure(new AbortException(NOT_QUEUED_BEFORE_RESTART));
+                return;
+            }
+            StatusOutbox outbox = StatusOutbox.get();
+            if (outboxId == 0 || outbox.isPending(outboxId)) {
+                // not journaled, or not delivered yet
+                await(StatusDeliveryQueue.get().enqueue(notification, outboxId));
+                return;
+            }
+            String failure = outbox.getFailure(outboxId);
+            if (failure == null) {
+                getContext().onSuccess(null);
+            } else {
+                getContext().onFailure(new AbortException(failure));
             }
-            repository.createCommitStatus(commit.getSHA1(),
-                    step.getStatus(), targetUrl, step.getDescription(), step.getContext());
-            return null;
         }
 
         public GitHubStatusNotificationStep getStep() {
@@ -417,7 +830,7 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
 
         private String getCredentialsId() {
             if (step.getCredentialsId() == null || step.getCredentialsId().isEmpty()) {
-                return tryToInferCredentialsId();
+                return tryToInferCredentialsId(run);
             } else {
                 return step.getCredentialsId();
             }
@@ -425,7 +838,7 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
 
         private String getRepo() {
             if (step.getRepo() == null || step.getRepo().isEmpty()) {
-                return tryToInferRepo();
+                return tryToInferRepo(run);
             } else {
                 return step.getRepo();
             }
@@ -433,7 +846,7 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
 
         private String getAccount() {
             if (step.getAccount() == null || step.getAccount().isEmpty()) {
-                return tryToInferAccount();
+                return tryToInferAccount(run);
             } else {
                 return step.getAccount();
             }
@@ -441,58 +854,26 @@ public final class GitHubStatusNotificationStep extends AbstractStepImpl {
 
         private String getSha1() {
             if (step.getSha() == null || step.getSha().isEmpty()) {
-                return tryToInferSha();
+                return tryToInferSha(run);
             } else {
                 return step.getSha();
             }
         }
 
-        private String tryToInferCredentialsId() {
-            String credentialsID = getSource().getScanCredentialsId();
-            if (credentialsID != null) {
-                return credentialsID;
-            } else {
-                throw new IllegalArgumentException(UNABLE_TO_INFER_CREDENTIALS_ID);
-            }
+        static String tryToInferCredentialsId(Run<?, ?> run) {
+            return InferredGitHubData.of(run).getCredentialsId(run);
         }
 
-        private String tryToInferRepo() {
-            return getSource().getRepository();
+        static String tryToInferRepo(Run<?, ?> run) {
+            return InferredGitHubData.of(run).getRepo(run);
         }
 
-        private String tryToInferAccount() {
-            return getSource().getRepoOwner();
+        static String tryToInferAccount(Run<?, ?> run) {
+            return InferredGitHubData.of(run).getAccount(run);
         }
 
-        private String tryToInferSha() {
-            SCMRevisionAction action = run.getAction(SCMRevisionAction.class);
-            if (action != null) {
-                SCMRevision revision = action.getRevision();
-                if (revision instanceof AbstractGitSCMSource.SCMRevisionImpl) {
-                    return ((AbstractGitSCMSource.SCMRevisionImpl) revision).getHash();
-                } else if (revision instanceof PullRequestSCMRevision) {
-                    return ((PullRequestSCMRevision) revision).getPullHash();
-                } else {
-                    throw new IllegalArgumentException(UNABLE_TO_INFER_COMMIT);
-                }
-            } else {
-                throw new IllegalArgumentException(UNABLE_TO_INFER_COMMIT);
-            }
-        }
-
-        private GitHubSCMSource getSource() {
-            ItemGroup parent = run.getParent().getParent();
-            if (parent instanceof SCMSourceOwner) {
-                SCMSourceOwner owner = (SCMSourceOwner)parent;
-                for (SCMSource source : owner.getSCMSources()) {
-                    if (source instanceof GitHubSCMSource) {
-                        return ((GitHubSCMSource) source);
-                    }
-                }
-                throw new IllegalArgumentException(UNABLE_TO_INFER_DATA);
-            } else {
-                throw new IllegalArgumentException(UNABLE_TO_INFER_DATA);
-            }
+        static String tryToInferSha(Run<?, ?> run) {
+            return InferredGitHubData.of(run).getSha(run);
         }
     }
 }
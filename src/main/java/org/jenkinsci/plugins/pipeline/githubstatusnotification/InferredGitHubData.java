@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Util;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMRevisionAction;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceOwner;
+import org.jenkinsci.plugins.github_branch_source.GitHubSCMSource;
+import org.jenkinsci.plugins.github_branch_source.PullRequestSCMRevision;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static org.jenkinsci.plugins.pipeline.githubstatusnotification.GitHubStatusNotificationStep.Execution.UNABLE_TO_INFER_COMMIT;
+import static org.jenkinsci.plugins.pipeline.githubstatusnotification.GitHubStatusNotificationStep.Execution.UNABLE_TO_INFER_CREDENTIALS_ID;
+import static org.jenkinsci.plugins.pipeline.githubstatusnotification.GitHubStatusNotificationStep.Execution.UNABLE_TO_INFER_DATA;
+
+/**
+ * The GitHub data inferred from the SCM of a build, computed on the first notification and reused by the next ones.
+ *
+ * Only successful inferences are remembered, the revision of a build may not be known yet when it starts. The data is
+ * kept in memory for as long as the build itself, not by build id: a job deleted and created again starts over at
+ * build #1 with other data. It is never saved with the build and is inferred again after a restart or when the build
+ * is loaded again.
+ */
+final class InferredGitHubData {
+
+    private static final String GITHUB_API_URL = "https://api.github.com";
+
+    /**
+     * Data by build, guarded by itself.
+     */
+    private static final Map<Run<?, ?>, InferredGitHubData> BUILDS = new WeakHashMap<>();
+
+    private volatile boolean sourceInferred;
+    private volatile String credentialsId;
+    private volatile String account;
+    private volatile String repo;
+    private volatile String gitApiUrl;
+    private volatile String sha;
+
+    private InferredGitHubData() {
+    }
+
+    /**
+     * Returns the inferred data of the build, creating it on first use.
+     */
+    @Nonnull
+    static InferredGitHubData of(@Nonnull Run<?, ?> run) {
+        synchronized (BUILDS) {
+            InferredGitHubData data = BUILDS.get(run);
+            if (data == null) {
+                data = new InferredGitHubData();
+                BUILDS.put(run, data);
+            }
+            return data;
+        }
+    }
+
+    @Nonnull
+    String getCredentialsId(@Nonnull Run<?, ?> run) {
+        inferSource(run);
+        if (credentialsId == null) {
+            throw new IllegalArgumentException(UNABLE_TO_INFER_CREDENTIALS_ID);
+        }
+        return credentialsId;
+    }
+
+    String getAccount(@Nonnull Run<?, ?> run) {
+        inferSource(run);
+        return account;
+    }
+
+    String getRepo(@Nonnull Run<?, ?> run) {
+        inferSource(run);
+        return repo;
+    }
+
+    /**
+     * The API endpoint of the source, null for GitHub.com.
+     */
+    String getGitApiUrl(@Nonnull Run<?, ?> run) {
+        inferSource(run);
+        return gitApiUrl;
+    }
+
+    @Nonnull
+    String getSha(@Nonnull Run<?, ?> run) {
+        String inferred = sha;
+        if (inferred == null) {
+            inferred = inferSha(run);
+            sha = inferred;
+        }
+        return inferred;
+    }
+
+    private void inferSource(Run<?, ?> run) {
+        if (sourceInferred) {
+            return;
+        }
+        GitHubSCMSource source = getSource(run);
+        credentialsId = source.getScanCredentialsId();
+        account = source.getRepoOwner();
+        repo = source.getRepository();
+        String apiUri = Util.fixEmpty(source.getApiUri());
+        gitApiUrl = GITHUB_API_URL.equals(apiUri) ? null : apiUri;
+        sourceInferred = true;
+    }
+
+    private static String inferSha(Run<?, ?> run) {
+        SCMRevisionAction action = run.getAction(SCMRevisionAction.class);
+        if (action != null) {
+            SCMRevision revision = action.getRevision();
+            if (revision instanceof AbstractGitSCMSource.SCMRevisionImpl) {
+                return ((AbstractGitSCMSource.SCMRevisionImpl) revision).getHash();
+            } else if (revision instanceof PullRequestSCMRevision) {
+                return ((PullRequestSCMRevision) revision).getPullHash();
+            } else {
+                throw new IllegalArgumentException(UNABLE_TO_INFER_COMMIT);
+            }
+        } else {
+            throw new IllegalArgumentException(UNABLE_TO_INFER_COMMIT);
+        }
+    }
+
+    private static GitHubSCMSource getSource(Run<?, ?> run) {
+        ItemGroup parent = run.getParent().getParent();
+        if (parent instanceof SCMSourceOwner) {
+            SCMSourceOwner owner = (SCMSourceOwner)parent;
+            for (SCMSource source : owner.getSCMSources()) {
+                if (source instanceof GitHubSCMSource) {
+                    return ((GitHubSCMSource) source);
+                }
+            }
+            throw new IllegalArgumentException(UNABLE_TO_INFER_DATA);
+        } else {
+            throw new IllegalArgumentException(UNABLE_TO_INFER_DATA);
+        }
+    }
+}
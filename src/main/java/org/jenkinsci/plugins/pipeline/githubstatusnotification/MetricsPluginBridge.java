@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import jenkins.metrics.api.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the {@link NotifyMetrics} in the registry of the optional Metrics plugin, only loaded when it is installed.
+ */
+final class MetricsPluginBridge {
+
+    private MetricsPluginBridge() {
+    }
+
+    static void update(String name, long nanos) {
+        Metrics.metricRegistry().timer(name).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    static void gauges(String prefix, final RateLimitScheduler.Bucket bucket) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        register(registry, prefix + ".remaining", (Gauge<Integer>) bucket::getRemaining);
+        register(registry, prefix + ".limit", (Gauge<Integer>) bucket::getLimit);
+        register(registry, prefix + ".waiting", (Gauge<Integer>) bucket::getWaiting);
+    }
+
+    static void gauge(String name, Gauge<? extends Number> gauge) {
+        register(Metrics.metricRegistry(), name, gauge);
+    }
+
+    private static void register(MetricRegistry registry, String name, Gauge<? extends Number> gauge) {
+        if (!registry.getGauges().containsKey(name)) {
+            try {
+                registry.register(name, gauge);
+            } catch (IllegalArgumentException e) {
+                // registered concurrently
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timers of each phase of a notification, by API endpoint and outcome.
+ *
+ * They are shown on the <em>GitHub Notify</em> management page and, when the Metrics plugin is installed, published in
+ * its registry as {@code github.notify.<endpoint>.<phase>.<outcome>} timers together with the rate limit gauges of
+ * every endpoint and credentials, the {@code github.notify.ratelimit.*} gauges of the {@link RateLimitScheduler} and
+ * the {@code github.notify.clients.*} gauges of the {@link GitHubClientCache}, so they can be scraped by the Prometheus
+ * plugin. Credentials appear in the gauge names as a hash of their id only.
+ *
+ * Whether the Metrics plugin is installed is checked again every {@link #PLUGIN_CHECK_INTERVAL_MILLIS} until it is, so
+ * installing it without a restart publishes everything recorded from then on.
+ */
+@Extension
+public class NotifyMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(NotifyMetrics.class.getName());
+
+    static final long PLUGIN_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    public enum Phase {
+        /** Looking the credentials up. */
+        CREDENTIALS,
+        /** Getting a cached client or building a new one. */
+        CLIENT,
+        /** Checking the credentials against GitHub. */
+        VALIDATION,
+        /** Looking the repository up. */
+        REPOSITORY,
+        /** Looking the commit up. */
+        COMMIT,
+        /** Creating the commit status. */
+        STATUS,
+        /** The whole delivery, including rate limit waits and retries. */
+        DELIVERY
+    }
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private volatile boolean metricsPlugin;
+
+    private volatile long nextPluginCheck;
+
+    @Nonnull
+    public static NotifyMetrics get() {
+        return ExtensionList.lookupSingleton(NotifyMetrics.class);
+    }
+
+    /**
+     * Times the call as the given phase of a request to the endpoint.
+     */
+    static <T> T time(@Nonnull Phase phase, @CheckForNull String gitApiUrl, @Nonnull Timed<T> call) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = call.call();
+            success = true;
+            return result;
+        } finally {
+            get().record(phase, gitApiUrl, success, System.nanoTime() - start);
+        }
+    }
+
+    void record(@Nonnull Phase phase, @CheckForNull String gitApiUrl, boolean success, long nanos) {
+        String name = name(CircuitBreakers.displayName(gitApiUrl), phase.name().toLowerCase(), success ? "success" : "failure");
+        Timer timer = timers.get(name);
+        if (timer == null) {
+            timer = new Timer();
+            Timer existing = timers.putIfAbsent(name, timer);
+            if (existing != null) {
+                timer = existing;
+            }
+        }
+        timer.update(nanos);
+        NotifyTrace.phase(phase, nanos);
+        if (isMetricsPlugin()) {
+            try {
+                MetricsPluginBridge.update(name, nanos);
+            } catch (RuntimeException | LinkageError e) {
+                LOGGER.log(Level.FINE, "Unable to publish " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Publishes the rate limit of a new bucket as gauges.
+     */
+    void bucketCreated(@CheckForNull String gitApiUrl, @Nonnull String credentialsId, @Nonnull RateLimitScheduler.Bucket bucket) {
+        if (isMetricsPlugin()) {
+            String prefix = name(CircuitBreakers.displayName(gitApiUrl), "ratelimit", hash(credentialsId));
+            try {
+                MetricsPluginBridge.gauges(prefix, bucket);
+            } catch (RuntimeException | LinkageError e) {
+                LOGGER.log(Level.FINE, "Unable to publish " + prefix, e);
+            }
+        }
+    }
+
+    /**
+     * The timers recorded so far, by name.
+     */
+    @Nonnull
+    public Map<String, Timer> getTimers() {
+        return new TreeMap<>(timers);
+    }
+
+    private boolean isMetricsPlugin() {
+        if (metricsPlugin) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextPluginCheck) {
+            return false;
+        }
+        nextPluginCheck = now + PLUGIN_CHECK_INTERVAL_MILLIS;
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null || jenkins.getPlugin("metrics") == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (!metricsPlugin) {
+                metricsPlugin = true;
+                publishGauges();
+                RateLimitScheduler.get().publishBuckets();
+            }
+        }
+        return true;
+    }
+
+    private void publishGauges() {
+        GitHubClientCache cache = GitHubClientCache.get();
+        RateLimitScheduler scheduler = RateLimitScheduler.get();
+        try {
+            MetricsPluginBridge.gauge("github.notify.clients.hits", cache::getHits);
+            MetricsPluginBridge.gauge("github.notify.clients.misses", cache::getMisses);
+            MetricsPluginBridge.gauge("github.notify.clients.size", cache::getSize);
+            MetricsPluginBridge.gauge("github.notify.ratelimit.waiting", scheduler::getWaiting);
+            MetricsPluginBridge.gauge("github.notify.ratelimit.waits", scheduler::getWaits);
+            MetricsPluginBridge.gauge("github.notify.ratelimit.waitMillis", scheduler::getTotalWaitMillis);
+            MetricsPluginBridge.gauge("github.notify.ratelimit.retries", scheduler::getRetries);
+        } catch (RuntimeException | LinkageError e) {
+            LOGGER.log(Level.FINE, "Unable to publish the client cache and rate limit gauges", e);
+        }
+    }
+
+    private static String name(String endpoint, String phase, String outcome) {
+        return "github.notify." + sanitize(endpoint.replaceFirst("^https?://", "")) + '.' + phase + '.' + outcome;
+    }
+
+    /**
+     * An opaque name for the credentials, so their ids do not end up in the metrics backends.
+     */
+    static String hash(String credentialsId) {
+        return "credentials-" + Util.getDigestOf(credentialsId).substring(0, 12);
+    }
+
+    private static String sanitize(String segment) {
+        return segment.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    /**
+     * A call being timed.
+     */
+    interface Timed<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Number of calls and their total and maximum duration.
+     */
+    public static final class Timer {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void update(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = maxNanos.get();
+            } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMeanMillis() {
+            long calls = count.get();
+            return calls == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / calls);
+        }
+
+        public long getMaxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * What happened while delivering a single status, collected on the threads delivering it: time spent in each phase,
+ * requests sent to GitHub, retries and rate limit waits.
+ */
+final class NotifyTrace implements AutoCloseable {
+
+    private static final ThreadLocal<NotifyTrace> CURRENT = new ThreadLocal<>();
+
+    private NotifyTrace previous;
+    private final long start = System.nanoTime();
+    private final Map<NotifyMetrics.Phase, Long> phaseNanos = new EnumMap<>(NotifyMetrics.Phase.class);
+    private int requests;
+    private int retries;
+    private long rateLimitWaitMillis;
+    private long elapsedNanos = -1;
+    private String credentialsId;
+
+    private NotifyTrace(NotifyTrace previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * Starts tracing the calling thread until {@link #close()}.
+     */
+    @Nonnull
+    static NotifyTrace start() {
+        NotifyTrace trace = new NotifyTrace(CURRENT.get());
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * Detaches the trace from the calling thread while its delivery is deferred, see {@link #resume()}.
+     */
+    void suspend() {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Traces the calling thread again, which may not be the one that started the trace.
+     */
+    void resume() {
+        previous = CURRENT.get();
+        CURRENT.set(this);
+    }
+
+    @CheckForNull
+    static NotifyTrace current() {
+        return CURRENT.get();
+    }
+
+    static void phase(@Nonnull NotifyMetrics.Phase phase, long nanos) {
+        NotifyTrace trace = CURRENT.get();
+        if (trace != null) {
+            Long total = trace.phaseNanos.get(phase);
+            trace.phaseNanos.put(phase, total == null ? nanos : total + nanos);
+        }
+    }
+
+    static void requestSent() {
+        NotifyTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.requests++;
+        }
+    }
+
+    static void credentialsUsed(@Nonnull String credentialsId) {
+        NotifyTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.credentialsId = credentialsId;
+        }
+    }
+
+    static void retried() {
+        NotifyTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.retries++;
+        }
+    }
+
+    static void waitedForRateLimit(long millis) {
+        NotifyTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.rateLimitWaitMillis += millis;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (elapsedNanos < 0) {
+            elapsedNanos = System.nanoTime() - start;
+            suspend();
+        }
+    }
+
+    @Nonnull
+    Map<NotifyMetrics.Phase, Long> getPhaseNanos() {
+        return phaseNanos;
+    }
+
+    /**
+     * @return the credentials of the last attempt, null if none was made
+     */
+    @CheckForNull
+    String getCredentialsId() {
+        return credentialsId;
+    }
+
+    int getRequests() {
+        return requests;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    long getRateLimitWaitMillis() {
+        return rateLimitWaitMillis;
+    }
+
+    long getElapsedNanos() {
+        return elapsedNanos < 0 ? System.nanoTime() - start : elapsedNanos;
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import org.kohsuke.github.AbuseLimitHandler;
+import org.kohsuke.github.GHRateLimit;
+import org.kohsuke.github.GitHub;
+import org.kohsuke.github.HttpException;
+import org.kohsuke.github.RateLimitHandler;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces the requests sent to GitHub for each API endpoint and credentials, so bursts of notifications stay within the
+ * rate limits instead of failing.
+ *
+ * Each endpoint and credentials pair has a bucket fed from the rate limit headers of the previous responses: when the
+ * remaining requests run low they are spread until the reset time, when they are exhausted, or GitHub answers with a
+ * {@code Retry-After}, requests wait until then. Requests rejected because of the rate limits, or with a server error,
+ * are retried with a jittered exponential backoff.
+ *
+ * A request never waits on its thread: when its bucket does not allow it yet the scheduler throws {@link Deferred} and
+ * the caller runs it again after the delay, with the same {@link Progress}.
+ */
+@Extension
+public class RateLimitScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(RateLimitScheduler.class.getName());
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    static final long BASE_BACKOFF_MILLIS = 1000;
+
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Below this share of the rate limit the remaining requests are spread until the reset time.
+     */
+    static final double PACING_THRESHOLD = 0.1;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    @Nonnull
+    public static RateLimitScheduler get() {
+        return ExtensionList.lookupSingleton(RateLimitScheduler.class);
+    }
+
+    /**
+     * Runs the request if its bucket allows it, retrying it while it fails for a transient reason.
+     *
+     * When the credentials id is a {@link CredentialsPool} each attempt is sent with the member that has the most
+     * requests left.
+     *
+     * @throws Deferred if the request has to wait for its bucket, to be run again after the delay
+     */
+    void run(@CheckForNull String gitApiUrl, @Nonnull String credentialsId, @Nonnull Progress progress,
+             @Nonnull Request request) throws IOException, Deferred {
+        int maxRetries = GitHubNotifyConfiguration.get().getMaxRetries();
+        for (; ; progress.attempt++) {
+            String member = CredentialsPool.resolve(credentialsId, gitApiUrl);
+            NotifyTrace.credentialsUsed(member);
+            Bucket bucket = bucket(gitApiUrl, member);
+            long delay = progress.acquire(bucket);
+            if (delay > 0) {
+                throw new Deferred(delay);
+            }
+            try {
+                bucket.observe(request.run(member));
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (progress.attempt >= maxRetries || !bucket.isRetryable(e)) {
+                    throw e;
+                }
+                long backoff = backoff(progress.attempt);
+                LOGGER.log(Level.FINE, "Retrying GitHub request in " + backoff + "ms", e);
+                retries.incrementAndGet();
+                NotifyTrace.retried();
+                bucket.blockFor(backoff);
+            }
+        }
+    }
+
+    /**
+     * Returns the bucket shared by every request to the endpoint with the credentials.
+     */
+    @Nonnull
+    Bucket bucket(@CheckForNull String gitApiUrl, @Nonnull String credentialsId) {
+        String key = Util.fixNull(gitApiUrl) + ' ' + credentialsId;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket();
+            Bucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            } else {
+                NotifyMetrics.get().bucketCreated(gitApiUrl, credentialsId, bucket);
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Publishes the gauges of the buckets created so far, for a Metrics plugin found after they were created.
+     */
+    void publishBuckets() {
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            String key = entry.getKey();
+            int separator = key.indexOf(' ');
+            NotifyMetrics.get().bucketCreated(Util.fixEmpty(key.substring(0, separator)), key.substring(separator + 1), entry.getValue());
+        }
+    }
+
+    /**
+     * Number of requests currently deferred until their bucket allows them.
+     */
+    public int getWaiting() {
+        int waiting = 0;
+        for (Bucket bucket : buckets.values()) {
+            waiting += bucket.waiting.get();
+        }
+        return waiting;
+    }
+
+    /**
+     * Total time requests spent waiting for their bucket.
+     */
+    public long getTotalWaitMillis() {
+        long total = 0;
+        for (Bucket bucket : buckets.values()) {
+            total += bucket.waitMillis.get();
+        }
+        return total;
+    }
+
+    /**
+     * Number of times a request was deferred because of its bucket.
+     */
+    public long getWaits() {
+        long total = 0;
+        for (Bucket bucket : buckets.values()) {
+            total += bucket.waits.get();
+        }
+        return total;
+    }
+
+    /**
+     * Number of requests sent again after failing for a transient reason.
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    private static long backoff(int attempt) {
+        long exponential = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
+    }
+
+    /**
+     * A request to GitHub.
+     */
+    interface Request {
+        /**
+         * @param credentialsId the credentials to send the request with
+         * @return the client used, to read the rate limit it observed, or null if unknown
+         */
+        @CheckForNull
+        GitHub run(@Nonnull String credentialsId) throws IOException;
+    }
+
+    /**
+     * Thrown when a request has to wait for its bucket, so the caller frees its thread and runs it again later.
+     */
+    static final class Deferred extends Exception {
+        private final long delayMillis;
+
+        Deferred(long delayMillis) {
+            super("Deferred for " + delayMillis + "ms by the GitHub rate limit", null, false, false);
+            this.delayMillis = delayMillis;
+        }
+
+        long getDelayMillis() {
+            return delayMillis;
+        }
+    }
+
+    /**
+     * The attempts of a request across the times it was deferred, and the slot it reserved in its bucket.
+     */
+    static final class Progress {
+        private int attempt;
+        private Bucket bucket;
+        private long slot;
+        private long deferredAt;
+
+        /**
+         * Takes the slot reserved when the request was deferred if it is due, or reserves the next one.
+         *
+         * @return milliseconds to wait before running the request again, 0 to run it now
+         */
+        long acquire(Bucket bucket) {
+            long now = System.currentTimeMillis();
+            if (this.bucket != null) {
+                long waited = now - deferredAt;
+                this.bucket.waiting.decrementAndGet();
+                this.bucket.waitMillis.addAndGet(waited);
+                NotifyTrace.waitedForRateLimit(waited);
+            }
+            long reserved = this.bucket == bucket ? slot : 0;
+            long delay = bucket.acquire(reserved, now);
+            if (delay > 0) {
+                this.bucket = bucket;
+                this.slot = now + delay;
+                this.deferredAt = now;
+                bucket.waiting.incrementAndGet();
+                bucket.waits.incrementAndGet();
+            } else {
+                this.bucket = null;
+            }
+            return delay;
+        }
+
+        /**
+         * Releases the slot of a request that will not be run again.
+         */
+        void abandon() {
+            if (bucket != null) {
+                bucket.waiting.decrementAndGet();
+                bucket = null;
+            }
+        }
+    }
+
+    /**
+     * Thrown by the rate limit handlers of the cached clients, so the scheduler waits and retries instead of the library.
+     */
+    static final class RateLimitedException extends IOException {
+        RateLimitedException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * The pacing state of an endpoint and credentials pair.
+     */
+    static final class Bucket {
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong waitMillis = new AtomicLong();
+        /**
+         * The rate limit reported by the last response, -1 until known.
+         */
+        private volatile int remaining = -1;
+        private volatile int limit = -1;
+
+        /**
+         * No request is sent before this time, guarded by this.
+         */
+        private long blockedUntil;
+        /**
+         * The time the next request may be sent at when pacing, guarded by this.
+         */
+        private long nextSlot;
+        /**
+         * Minimum time between two requests, zero while there are plenty of requests left, guarded by this.
+         */
+        private long interval;
+
+        /**
+         * Reserves the next slot a request can be sent at.
+         *
+         * @param reserved the slot reserved by the same request when it was deferred, 0 if none
+         * @return milliseconds until the slot, 0 if the request can be sent now
+         */
+        synchronized long acquire(long reserved, long now) {
+            if (reserved > 0 && reserved <= now && blockedUntil <= now) {
+                return 0;
+            }
+            long slot = Math.max(now, Math.max(blockedUntil, nextSlot));
+            nextSlot = slot + interval;
+            return slot - now;
+        }
+
+        public int getRemaining() {
+            return remaining;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getWaiting() {
+            return waiting.get();
+        }
+
+        /**
+         * Counts a request about to be sent against the requests left, until the next response tells the real number.
+         */
+        synchronized void reserve() {
+            if (remaining > 0) {
+                remaining--;
+            }
+        }
+
+        synchronized long getBlockedUntil() {
+            return blockedUntil;
+        }
+
+        synchronized void blockFor(long millis) {
+            blockedUntil = Math.max(blockedUntil, System.currentTimeMillis() + millis);
+        }
+
+        synchronized boolean isBlocked() {
+            return blockedUntil > System.currentTimeMillis();
+        }
+
+        /**
+         * Adjusts the pacing to the rate limit reported in the last response received by the client.
+         */
+        void observe(@CheckForNull GitHub github) {
+            GHRateLimit rateLimit = github == null ? null : github.lastRateLimit();
+            if (rateLimit == null || rateLimit.getLimit() <= 0) {
+                return;
+            }
+            Date reset = rateLimit.getResetDate();
+            long untilReset = reset == null ? 0 : Math.max(0, reset.getTime() - System.currentTimeMillis());
+            int remaining = rateLimit.getRemaining();
+            this.remaining = remaining;
+            this.limit = rateLimit.getLimit();
+            synchronized (this) {
+                if (remaining <= 0) {
+                    blockedUntil = Math.max(blockedUntil, System.currentTimeMillis() + untilReset);
+                    interval = 0;
+                } else if (remaining < rateLimit.getLimit() * PACING_THRESHOLD) {
+                    interval = untilReset / remaining;
+                } else {
+                    interval = 0;
+                }
+            }
+        }
+
+        /**
+         * Rate limit rejections and server errors are worth retrying, anything else will fail again.
+         */
+        boolean isRetryable(Exception e) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof RateLimitedException) {
+                    return true;
+                }
+                if (t instanceof HttpException) {
+                    int code = ((HttpException) t).getResponseCode();
+                    return code == HTTP_TOO_MANY_REQUESTS || code >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                            || (code == HttpURLConnection.HTTP_FORBIDDEN && isBlocked());
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Called by the client when GitHub rejects a request because of the primary rate limit.
+         */
+        RateLimitHandler rateLimitHandler() {
+            return new RateLimitHandler() {
+                @Override
+                public void onError(IOException e, HttpURLConnection uc) throws IOException {
+                    blockFor(retryAfter(uc));
+                    throw new RateLimitedException(e);
+                }
+            };
+        }
+
+        /**
+         * Called by the client when GitHub rejects a request because of the secondary, or abuse, rate limit.
+         */
+        AbuseLimitHandler abuseLimitHandler() {
+            return new AbuseLimitHandler() {
+                @Override
+                public void onError(IOException e, HttpURLConnection uc) throws IOException {
+                    blockFor(retryAfter(uc));
+                    throw new RateLimitedException(e);
+                }
+            };
+        }
+
+        /**
+         * Reads how long to wait from {@code Retry-After}, or until {@code X-RateLimit-Reset}.
+         */
+        private static long retryAfter(HttpURLConnection uc) {
+            String retryAfter = uc.getHeaderField("Retry-After");
+            if (retryAfter != null) {
+                try {
+                    return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+                } catch (NumberFormatException e) {
+                    // an HTTP date, fall back to the rate limit reset
+                }
+            }
+            String reset = uc.getHeaderField("X-RateLimit-Reset");
+            if (reset != null) {
+                try {
+                    return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(reset.trim())) - System.currentTimeMillis());
+                } catch (NumberFormatException e) {
+                    // ignore, use the default backoff
+                }
+            }
+            return BASE_BACKOFF_MILLIS;
+        }
+    }
+}
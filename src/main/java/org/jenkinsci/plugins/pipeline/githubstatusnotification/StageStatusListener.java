@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import org.jenkinsci.plugins.displayurlapi.DisplayURLProvider;
+import org.jenkinsci.plugins.workflow.actions.LabelAction;
+import org.jenkinsci.plugins.workflow.actions.TagsAction;
+import org.jenkinsci.plugins.workflow.actions.ThreadNameAction;
+import org.jenkinsci.plugins.workflow.actions.WarningAction;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.flow.GraphListener;
+import org.jenkinsci.plugins.workflow.graph.BlockEndNode;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.kohsuke.github.GHCommitState;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a PENDING status when a stage starts and a SUCCESS or FAILURE one when it ends, without any step in the
+ * pipeline, when {@link GitHubNotifyConfiguration#isStageStatuses()} is set.
+ *
+ * The listener only records which stage started or ended; finding its outcome, inferring the commit and sending the
+ * status happen on the step threads, through the {@link StatusDeliveryQueue}, in the order the stages started and
+ * ended. A stage ends with FAILURE when it failed or when a step such as {@code unstable} or {@code catchError} marked
+ * it UNSTABLE or worse, as GitHub has no unstable state. Declarative stages skipped by their {@code when} condition
+ * are not notified. Builds whose GitHub data cannot be inferred are ignored.
+ */
+@Extension
+public class StageStatusListener implements GraphListener {
+
+    private static final Logger LOGGER = Logger.getLogger(StageStatusListener.class.getName());
+
+    /**
+     * The tag Declarative pipelines put on the stages they did not run, and its value for a false {@code when} condition.
+     */
+    private static final String STAGE_STATUS = "STAGE_STATUS";
+    private static final String SKIPPED_FOR_CONDITIONAL = "SKIPPED_FOR_CONDITIONAL";
+
+    /**
+     * The last notification of each running pipeline, so the notifications of a pipeline run one after the other.
+     */
+    private final ConcurrentMap<FlowExecutionOwner, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The running stages whose start was not notified as they were already known to be skipped.
+     */
+    private final Set<FlowNode> skipped = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void onNewHead(FlowNode node) {
+        if (!GitHubNotifyConfiguration.get().isStageStatuses()) {
+            return;
+        }
+        FlowExecutionOwner owner = node.getExecution().getOwner();
+        if (isStage(node)) {
+            String name = node.getPersistentAction(LabelAction.class).getDisplayName();
+            inOrder(owner, () -> stageStarted(owner, node, name));
+        } else if (node instanceof BlockEndNode && isStage(((BlockEndNode<?>) node).getStartNode())) {
+            BlockEndNode<?> end = (BlockEndNode<?>) node;
+            String name = end.getStartNode().getPersistentAction(LabelAction.class).getDisplayName();
+            inOrder(owner, () -> stageEnded(owner, end, name));
+        }
+    }
+
+    /**
+     * The body of a stage is a block labelled with its name, unlike the body of a parallel branch it has no thread name.
+     */
+    private static boolean isStage(FlowNode node) {
+        return node instanceof BlockStartNode && node.getPersistentAction(LabelAction.class) != null
+                && node.getPersistentAction(ThreadNameAction.class) == null;
+    }
+
+    /**
+     * Declarative tags a skipped stage right after it starts, usually before its start is notified.
+     */
+    private static boolean isSkipped(FlowNode stage) {
+        TagsAction tags = stage.getPersistentAction(TagsAction.class);
+        return tags != null && SKIPPED_FOR_CONDITIONAL.equals(tags.getTagValue(STAGE_STATUS));
+    }
+
+    private void stageStarted(FlowExecutionOwner owner, FlowNode stage, String name) {
+        if (isSkipped(stage)) {
+            skipped.add(stage);
+            return;
+        }
+        notifyStage(owner, name, GHCommitState.PENDING, " is running");
+    }
+
+    private void stageEnded(FlowExecutionOwner owner, BlockEndNode<?> end, String name) {
+        FlowNode stage = end.getStartNode();
+        if (skipped.remove(stage)) {
+            return;
+        }
+        if (isSkipped(stage)) {
+            // tagged after its start was notified, the status must not stay pending
+            notifyStage(owner, name, GHCommitState.SUCCESS, " was skipped");
+            return;
+        }
+        Result result = end.getError() != null ? Result.FAILURE : getWorstWarning(stage, end);
+        if (result.isBetterOrEqualTo(Result.SUCCESS)) {
+            notifyStage(owner, name, GHCommitState.SUCCESS, " succeeded");
+        } else {
+            notifyStage(owner, name, GHCommitState.FAILURE, Result.UNSTABLE.equals(result) ? " is unstable" : " failed");
+        }
+    }
+
+    /**
+     * Returns the worst result the steps of the stage marked it with, SUCCESS if none did.
+     */
+    private static Result getWorstWarning(FlowNode stage, FlowNode end) {
+        Result worst = Result.SUCCESS;
+        DepthFirstScanner scanner = new DepthFirstScanner();
+        if (scanner.setup(end, Collections.singleton(stage))) {
+            for (FlowNode node : scanner) {
+                WarningAction warning = node.getPersistentAction(WarningAction.class);
+                if (warning != null && warning.getResult().isWorseThan(worst)) {
+                    worst = warning.getResult();
+                }
+            }
+        }
+        return worst;
+    }
+
+    private void inOrder(@Nonnull FlowExecutionOwner owner, @Nonnull Runnable notification) {
+        StatusDeliveryQueue queue = StatusDeliveryQueue.get();
+        CompletableFuture<Void> next = pending.compute(owner, (key, previous) ->
+                (previous == null ? CompletableFuture.<Void>completedFuture(null) : previous).thenRunAsync(notification, queue::execute));
+        next.whenComplete((result, failure) -> pending.remove(owner, next));
+    }
+
+    private static void notifyStage(FlowExecutionOwner owner, String name, GHCommitState state, String suffix) {
+        try {
+            Queue.Executable executable = owner.getExecutable();
+            if (!(executable instanceof Run)) {
+                return;
+            }
+            Run<?, ?> run = (Run<?, ?>) executable;
+            InferredGitHubData data = InferredGitHubData.of(run);
+            GitHubNotifyConfiguration configuration = GitHubNotifyConfiguration.get();
+            StatusNotification notification = new StatusNotification(run, data.getCredentialsId(run), data.getGitApiUrl(run),
+                    data.getAccount(run), data.getRepo(run), data.getSha(run), state, "Stage " + name + suffix,
+                    configuration.getStageContextPrefix() + name, DisplayURLProvider.get().getRunURL(run), false);
+            StatusDeliveryQueue.get().submit(notification);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.FINE, "Not notifying stage " + name + " of " + owner + ": " + e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Unable to notify stage " + name + " of " + owner, e);
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.Util;
+import hudson.init.Terminator;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import org.kohsuke.github.HttpException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller side queue delivering the statuses sent by the steps.
+ *
+ * Statuses are coalesced by API endpoint, repository, commit and context: while a delivery for the same target is
+ * queued or in flight only the newest status is kept, as GitHub only shows the latest one anyway. Each superseded
+ * status completes together with the one that replaced it, which also carries its check run annotations.
+ *
+ * Deliveries run on virtual threads when the JVM supports them and on a small pool otherwise, the queue never holds more
+ * than one status per target. The work done by the steps before queuing a status runs on its own pool, so steps keep
+ * starting while every delivery thread is busy. The requests in flight to each API endpoint are limited by
+ * {@link GitHubNotifyConfiguration#getMaxConcurrentRequests()}.
+ *
+ * A delivery never blocks its thread: a target waiting for a request slot of its endpoint is parked until a delivery to
+ * that endpoint completes, and one deferred by the {@link RateLimitScheduler} is scheduled again after the delay.
+ */
+@Extension
+public class StatusDeliveryQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(StatusDeliveryQueue.class.getName());
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Size of the pool used when virtual threads are not available.
+     */
+    static final int THREADS = SystemProperties.getInteger(StatusDeliveryQueue.class.getName() + ".threads", 8);
+
+    static final boolean VIRTUAL_THREADS = SystemProperties.getBoolean(StatusDeliveryQueue.class.getName() + ".virtualThreads", true);
+
+    /**
+     * Size of the pool running the work of the steps, see {@link #execute(Runnable)}.
+     */
+    static final int STEP_THREADS = SystemProperties.getInteger(StatusDeliveryQueue.class.getName() + ".stepThreads", 2);
+
+    /**
+     * Number of targets allowed to wait for a delivery thread. Beyond it the thread queuing a status for a new target
+     * delivers it itself, which slows down the steps and listeners producing statuses faster than they are delivered.
+     * Only new targets are limited: a target rescheduled after a deferral or a parked request is already counted by
+     * {@link #slots}, so the queue of the delivery pool is never longer than the number of targets.
+     */
+    static /* non-final for the script console and tests */ int QUEUE_SIZE = SystemProperties.getInteger(
+            StatusDeliveryQueue.class.getName() + ".queueSize", 1000);
+
+    private final ExecutorService executor;
+
+    private final ExecutorService stepExecutor;
+
+    /**
+     * Number of targets waiting for a delivery thread.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Requests allowed to be in flight at the same time, by API endpoint.
+     */
+    private final ConcurrentMap<String, EndpointPermits> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * The statuses waiting to be delivered, by target. A status for a short commit hash has a slot of its own, see
+     * {@link #enqueue(StatusNotification, BuildDeliveries, long, boolean)}.
+     */
+    private final ConcurrentMap<Object, Slot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * The deliveries not flushed yet, by build externalizable id.
+     */
+    private final ConcurrentMap<String, BuildDeliveries> builds = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final DeliveredStatuses delivered = new DeliveredStatuses(
+            SystemProperties.getInteger(StatusDeliveryQueue.class.getName() + ".deliveredStatuses", 10000));
+
+    public StatusDeliveryQueue() {
+        executor = createExecutor();
+        stepExecutor = createPool(STEP_THREADS, "GitHub status step");
+    }
+
+    /**
+     * Runs each delivery on its own virtual thread when the JVM supports them, on a small bounded pool otherwise.
+     */
+    private static ExecutorService createExecutor() {
+        if (VIRTUAL_THREADS) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.FINE, "Virtual threads are not available, delivering statuses on a pool of {0} threads", THREADS);
+            }
+        }
+        return createPool(THREADS, "GitHub status delivery");
+    }
+
+    private static ExecutorService createPool(int threads, String name) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), name));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    @Nonnull
+    public static StatusDeliveryQueue get() {
+        return ExtensionList.lookupSingleton(StatusDeliveryQueue.class);
+    }
+
+    /**
+     * Queues the status for delivery and returns straight away.
+     */
+    @Nonnull
+    public Future<Void> submit(@Nonnull StatusNotification notification) {
+        BuildDeliveries deliveries = deliveriesOf(notification.getBuild());
+        Future<Void> delivery = enqueue(notification, deliveries, StatusOutbox.get().append(notification), false);
+        deliveries.add(delivery);
+        return delivery;
+    }
+
+    /**
+     * Queues the status for a caller that waits for the delivery itself, failures are not reported by {@link #flush(String)}.
+     */
+    @Nonnull
+    CompletableFuture<Void> enqueue(@Nonnull StatusNotification notification) {
+        return enqueue(notification, null, StatusOutbox.get().append(notification), true);
+    }
+
+    /**
+     * Runs a GitHub lookup of a step on the delivery threads, for a step that bounds how many of its lookups run at
+     * the same time itself.
+     */
+    void executeLookup(@Nonnull Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // only after shutdown
+            task.run();
+        }
+    }
+
+    /**
+     * Queues a status already journaled in the {@link StatusOutbox} under the given id, for a caller that waits for
+     * the delivery itself.
+     */
+    @Nonnull
+    CompletableFuture<Void> enqueue(@Nonnull StatusNotification notification, long outboxId) {
+        return enqueue(notification, null, outboxId, true);
+    }
+
+    /**
+     * Runs some work of a step, such as inferring the notification data, instead of the thread starting the step. It
+     * never waits for the delivery threads.
+     */
+    void execute(@Nonnull Runnable task) {
+        try {
+            stepExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // only after shutdown
+            task.run();
+        }
+    }
+
+    /**
+     * Queues a status recovered from the {@link StatusOutbox}, nobody waits for it.
+     */
+    void replay(@Nonnull StatusNotification notification, long outboxId) {
+        enqueue(notification, null, outboxId, false);
+    }
+
+    /**
+     * Only statuses for full commit hashes are coalesced, the steps resolve short ones before queuing them. A short hash
+     * left, such as one replayed from an older outbox, cannot be told apart from another form of the same commit, so it
+     * is delivered on its own rather than racing with a slot for that commit.
+     */
+    private CompletableFuture<Void> enqueue(StatusNotification notification, BuildDeliveries deliveries, long outboxId,
+                                            boolean waited) {
+        Waiter waiter = new Waiter(deliveries, outboxId, waited);
+        StatusTarget target = new StatusTarget(notification);
+        Object key = GitHubStatusNotificationStep.isFullSha(notification.getSha()) ? target : new Object();
+        while (true) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot(key, target);
+                Slot existing = slots.putIfAbsent(key, slot);
+                if (existing != null) {
+                    slot = existing;
+                }
+            }
+            boolean schedule;
+            synchronized (slot) {
+                if (slot.removed) {
+                    continue;
+                }
+                if (slot.latest != null) {
+                    coalesced.incrementAndGet();
+                    slot.latest = notification.supersede(slot.latest);
+                } else {
+                    slot.latest = notification;
+                }
+                slot.waiters.add(waiter);
+                schedule = !slot.scheduled;
+                slot.scheduled = true;
+            }
+            if (schedule) {
+                if (waiting.get() >= QUEUE_SIZE) {
+                    // backpressure, the caller delivers the status instead of queuing it
+                    drain(slot);
+                } else {
+                    schedule(slot);
+                }
+            }
+            return waiter.future;
+        }
+    }
+
+    /**
+     * Waits until every status queued by the build has been delivered or has failed.
+     *
+     * @return the description of the failed deliveries, empty if all of them succeeded
+     */
+    @Nonnull
+    public List<String> flush(@Nonnull String build) throws InterruptedException {
+        BuildDeliveries deliveries = builds.remove(build);
+        if (deliveries == null) {
+            return Collections.emptyList();
+        }
+        for (Future<Void> delivery : deliveries.pending) {
+            try {
+                delivery.get();
+            } catch (ExecutionException e) {
+                // already recorded as a failure
+            }
+        }
+        return new ArrayList<>(deliveries.failures);
+    }
+
+    /**
+     * Number of targets with statuses waiting for a delivery thread.
+     */
+    public int getQueueSize() {
+        return waiting.get();
+    }
+
+    /**
+     * Number of statuses that were never sent because a newer one for the same target replaced them.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Number of statuses not sent because GitHub already showed the very same status, see
+     * {@link GitHubNotifyConfiguration#isSkipDuplicateStatuses()}.
+     */
+    public long getSuppressed() {
+        return delivered.getSuppressed();
+    }
+
+    private void schedule(final Slot slot) {
+        waiting.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                waiting.decrementAndGet();
+                drain(slot);
+            });
+        } catch (RejectedExecutionException e) {
+            // only after shutdown
+            waiting.decrementAndGet();
+            drain(slot);
+        }
+    }
+
+    /**
+     * Returns the permits limiting the requests in flight to the endpoint, a new limit applies to the requests started
+     * after it was configured. Concurrent drains always agree on the permits of an endpoint.
+     */
+    private EndpointPermits permitsOf(String gitApiUrl) {
+        int max = GitHubNotifyConfiguration.get().getMaxConcurrentRequests();
+        return endpoints.compute(Util.fixNull(gitApiUrl),
+                (endpoint, permits) -> permits == null || permits.max != max ? new EndpointPermits(max) : permits);
+    }
+
+    /**
+     * Returns the permit held by the slot, handing it to the next parked slot if any.
+     */
+    private void release(Slot slot) {
+        EndpointPermits permits = slot.permits;
+        slot.permits = null;
+        Slot next = permits.release();
+        if (next != null) {
+            next.permits = permits;
+            schedule(next);
+        }
+    }
+
+    /**
+     * Puts a status back in its slot, behind any newer status queued meanwhile.
+     */
+    private void putBack(Slot slot, GitHubStatusNotificationStep.Delivery delivery, List<Waiter> waiters) {
+        synchronized (slot) {
+            StatusNotification notification = delivery.getNotification();
+            if (slot.latest != null) {
+                coalesced.incrementAndGet();
+                slot.latest = slot.latest.supersede(notification);
+            } else {
+                slot.latest = notification;
+            }
+            slot.deferred = delivery;
+            waiters.addAll(slot.waiters);
+            slot.waiters = waiters;
+        }
+    }
+
+    /**
+     * Delivers the newest status of the slot until no newer one arrives while delivering.
+     */
+    private void drain(Slot slot) {
+        while (true) {
+            if (slot.permits == null) {
+                EndpointPermits permits = permitsOf(slot.target.getGitApiUrl());
+                if (!permits.acquireOrPark(slot)) {
+                    // scheduled again with the permit of the next delivery to the endpoint that completes
+                    return;
+                }
+                slot.permits = permits;
+            }
+            StatusNotification notification;
+            GitHubStatusNotificationStep.Delivery delivery;
+            List<Waiter> waiters;
+            synchronized (slot) {
+                notification = slot.latest;
+                waiters = slot.waiters;
+                if (notification == null) {
+                    slot.scheduled = false;
+                    slot.removed = true;
+                    slots.remove(slot.key, slot);
+                }
+                delivery = notification == null ? null
+                        : slot.deferred == null ? new GitHubStatusNotificationStep.Delivery(notification)
+                        : slot.deferred.getNotification() == notification ? slot.deferred
+                        // replaced by a newer status while waiting, which continues the delivery
+                        : slot.deferred.supersededBy(notification);
+                slot.latest = null;
+                slot.deferred = null;
+                slot.waiters = new ArrayList<>();
+            }
+            if (notification == null) {
+                release(slot);
+                return;
+            }
+            long lastOutboxId = 0;
+            for (Waiter waiter : waiters) {
+                lastOutboxId = Math.max(lastOutboxId, waiter.outboxId);
+            }
+            boolean aborted = false;
+            try {
+                boolean skipDuplicates = GitHubNotifyConfiguration.get().isSkipDuplicateStatuses();
+                if (skipDuplicates && delivered.isDuplicate(notification)) {
+                    LOGGER.log(Level.FINE, "Not sending {0}, it is already the last status delivered", notification);
+                    delivery.abandon();
+                } else {
+                    try {
+                        GitHubStatusNotificationStep.send(delivery);
+                    } catch (RateLimitScheduler.Deferred e) {
+                        putBack(slot, delivery, waiters);
+                        release(slot);
+                        Timer.get().schedule(() -> schedule(slot), e.getDelayMillis(), TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    if (skipDuplicates) {
+                        delivered.delivered(notification);
+                    }
+                }
+                StatusOutbox.get().done(notification, lastOutboxId);
+                for (Waiter waiter : waiters) {
+                    waiter.future.complete(null);
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Unable to deliver GitHub status " + notification + " of " + notification.getBuild(), e);
+                boolean waited = false;
+                for (Waiter waiter : waiters) {
+                    waited |= waiter.waited;
+                }
+                if (waited) {
+                    // the step waiting for it fails, the commit must not change later behind its back
+                    StatusOutbox.get().rejected(notification, lastOutboxId, String.valueOf(e.getMessage()));
+                } else if (e instanceof CircuitBreakers.EndpointUnavailableException) {
+                    // replayed once the breaker lets a request through again
+                    StatusOutbox.get().unavailable(notification, lastOutboxId);
+                } else if (isTransient(e)) {
+                    StatusOutbox.get().failed(notification, lastOutboxId);
+                } else {
+                    // a rejected status will never be accepted
+                    StatusOutbox.get().rejected(notification, lastOutboxId, String.valueOf(e.getMessage()));
+                }
+                for (Waiter waiter : waiters) {
+                    if (waiter.deliveries != null) {
+                        waiter.deliveries.failures.add(notification + ": " + e.getMessage());
+                    }
+                    waiter.future.completeExceptionally(e);
+                }
+            } catch (Error e) {
+                aborted = true;
+                for (Waiter waiter : waiters) {
+                    waiter.future.completeExceptionally(e);
+                }
+                throw e;
+            } finally {
+                // the other targets of the endpoint get their turn before the next status of this one
+                if (slot.permits != null) {
+                    release(slot);
+                }
+                if (aborted) {
+                    // no longer drained, the next status queued schedules the slot again
+                    synchronized (slot) {
+                        slot.scheduled = false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the delivery may succeed later, so the status is kept in the {@link StatusOutbox} to be replayed. GitHub
+     * answering with a client error other than a rate limit will answer the same again.
+     */
+    private static boolean isTransient(Exception e) {
+        if (!(e instanceof IOException)) {
+            return false;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof RateLimitScheduler.RateLimitedException) {
+                return true;
+            }
+            if (t instanceof HttpException) {
+                int code = ((HttpException) t).getResponseCode();
+                return code < 400 || code >= 500 || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == HTTP_TOO_MANY_REQUESTS;
+            }
+        }
+        return true;
+    }
+
+    private BuildDeliveries deliveriesOf(String build) {
+        BuildDeliveries deliveries = builds.get(build);
+        if (deliveries == null) {
+            deliveries = new BuildDeliveries();
+            BuildDeliveries existing = builds.putIfAbsent(build, deliveries);
+            if (existing != null) {
+                deliveries = existing;
+            }
+        }
+        return deliveries;
+    }
+
+    @Terminator
+    public static void shutdown() throws InterruptedException {
+        for (StatusDeliveryQueue queue : ExtensionList.lookup(StatusDeliveryQueue.class)) {
+            queue.stepExecutor.shutdown();
+            queue.executor.shutdown();
+            queue.executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The newest status for a target and everyone waiting for it, guarded by the slot monitor.
+     */
+    private static final class Slot {
+        private final Object key;
+        private final StatusTarget target;
+        private StatusNotification latest;
+        /**
+         * The delivery put back when it was deferred or parked, resumed with {@link #latest}.
+         */
+        @CheckForNull
+        private GitHubStatusNotificationStep.Delivery deferred;
+        private List<Waiter> waiters = new ArrayList<>();
+        private boolean scheduled;
+        private boolean removed;
+        /**
+         * The request slot of its endpoint held by the slot, only accessed by the thread draining it.
+         */
+        @CheckForNull
+        private volatile EndpointPermits permits;
+
+        Slot(Object key, StatusTarget target) {
+            this.key = key;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Someone waiting for a delivery, with the build to report the failure to if it was queued without waiting, the id
+     * of the status in the {@link StatusOutbox} and whether a step reports the failure of the delivery itself.
+     */
+    private static final class Waiter {
+        @CheckForNull
+        private final BuildDeliveries deliveries;
+        private final long outboxId;
+        private final boolean waited;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(BuildDeliveries deliveries, long outboxId, boolean waited) {
+            this.deliveries = deliveries;
+            this.outboxId = outboxId;
+            this.waited = waited;
+        }
+    }
+
+    /**
+     * The requests allowed in flight to an endpoint, and the slots waiting for one of them in arrival order, guarded by
+     * this.
+     */
+    private static final class EndpointPermits {
+        private final int max;
+        private int available;
+        private final Queue<Slot> parked = new ArrayDeque<>();
+
+        EndpointPermits(int max) {
+            this.max = max;
+            this.available = max;
+        }
+
+        /**
+         * Takes a permit, or parks the slot until one is handed to it by {@link #release()}.
+         */
+        synchronized boolean acquireOrPark(Slot slot) {
+            if (available > 0) {
+                available--;
+                return true;
+            }
+            parked.add(slot);
+            return false;
+        }
+
+        /**
+         * Returns a permit, or hands it over to the next parked slot.
+         *
+         * @return the slot the permit was handed to, null if it was returned
+         */
+        @CheckForNull
+        synchronized Slot release() {
+            Slot next = parked.poll();
+            if (next == null) {
+                available++;
+            }
+            return next;
+        }
+    }
+
+    private static final class BuildDeliveries {
+        private final ConcurrentLinkedQueue<Future<Void>> pending = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+
+        void add(Future<Void> delivery) {
+            for (Iterator<Future<Void>> it = pending.iterator(); it.hasNext();) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+            pending.add(delivery);
+        }
+    }
+
+    /**
+     * Forgets the deliveries of finished builds that were never flushed, failures have been logged already.
+     */
+    @Extension
+    public static final class BuildDeliveriesCleaner extends RunListener<Run<?, ?>> {
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            StatusDeliveryQueue.get().builds.remove(run.getExternalizableId());
+        }
+    }
+}
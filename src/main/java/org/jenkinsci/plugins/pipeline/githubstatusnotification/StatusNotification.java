@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import org.kohsuke.github.GHCommitState;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A commit status ready to be sent to GitHub, with every inferable value already resolved.
+ *
+ * When {@link #isCheckRun()} it is sent as a check run named after the context, see {@link CheckRunDelivery}.
+ *
+ * It only keeps the names of the job and build that produced it, so it can be queued and delivered later.
+ */
+public final class StatusNotification implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String job;
+    private final String build;
+    private final String credentialsId;
+    private final String gitApiUrl;
+    private final String account;
+    private final String repo;
+    private final String sha;
+    private final GHCommitState state;
+    private final String description;
+    private final String context;
+    private final String targetUrl;
+    private final boolean validate;
+    private final boolean checkRun;
+    private final List<CheckAnnotation> annotations;
+
+    StatusNotification(@Nonnull Run<?, ?> run, String credentialsId, String gitApiUrl, String account, String repo,
+                       String sha, GHCommitState state, String description, String context, String targetUrl,
+                       boolean validate) {
+        this(run, credentialsId, gitApiUrl, account, repo, sha, state, description, context, targetUrl, validate,
+                false, null);
+    }
+
+    StatusNotification(@Nonnull Run<?, ?> run, String credentialsId, String gitApiUrl, String account, String repo,
+                       String sha, GHCommitState state, String description, String context, String targetUrl,
+                       boolean validate, boolean checkRun, List<CheckAnnotation> annotations) {
+        this.job = run.getParent().getFullName();
+        this.build = run.getExternalizableId();
+        this.credentialsId = credentialsId;
+        this.gitApiUrl = Util.fixEmpty(gitApiUrl);
+        this.account = account;
+        this.repo = repo;
+        this.sha = sha;
+        this.state = state;
+        this.description = description;
+        this.context = context;
+        this.targetUrl = targetUrl;
+        this.validate = validate;
+        this.checkRun = checkRun;
+        this.annotations = annotations == null || annotations.isEmpty() ? null : new ArrayList<>(annotations);
+    }
+
+    private StatusNotification(StatusNotification notification, List<CheckAnnotation> annotations) {
+        this.job = notification.job;
+        this.build = notification.build;
+        this.credentialsId = notification.credentialsId;
+        this.gitApiUrl = notification.gitApiUrl;
+        this.account = notification.account;
+        this.repo = notification.repo;
+        this.sha = notification.sha;
+        this.state = notification.state;
+        this.description = notification.description;
+        this.context = notification.context;
+        this.targetUrl = notification.targetUrl;
+        this.validate = notification.validate;
+        this.checkRun = notification.checkRun;
+        this.annotations = annotations;
+    }
+
+    /**
+     * The full name of the job that sends the status, used as context to look up the credentials.
+     */
+    public String getJob() {
+        return job;
+    }
+
+    /**
+     * The externalizable id of the build that sends the status.
+     */
+    public String getBuild() {
+        return build;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    @CheckForNull
+    public String getGitApiUrl() {
+        return gitApiUrl;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public String getSha() {
+        return sha;
+    }
+
+    public GHCommitState getState() {
+        return state;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public String getTargetUrl() {
+        return targetUrl;
+    }
+
+    public boolean isValidate() {
+        return validate;
+    }
+
+    public boolean isCheckRun() {
+        return checkRun;
+    }
+
+    /**
+     * The annotations to append to the check run.
+     */
+    @Nonnull
+    public List<CheckAnnotation> getAnnotations() {
+        return annotations == null ? Collections.<CheckAnnotation>emptyList() : Collections.unmodifiableList(annotations);
+    }
+
+    /**
+     * Returns what to deliver instead of this notification and an older one for the same target that was not sent yet.
+     *
+     * A newer status replaces the older one, but check run annotations are appended so the older ones are kept.
+     */
+    @Nonnull
+    StatusNotification supersede(@Nonnull StatusNotification older) {
+        if (older.annotations == null) {
+            return this;
+        }
+        List<CheckAnnotation> merged = new ArrayList<>(older.annotations);
+        merged.addAll(getAnnotations());
+        return new StatusNotification(this, merged);
+    }
+
+    /**
+     * Looks up the job that sends the status, regardless of the current authentication.
+     */
+    @CheckForNull
+    Item getItem() {
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            return Jenkins.get().getItemByFullName(job);
+        }
+    }
+
+    /**
+     * Looks up the build that sends the status, regardless of the current authentication.
+     */
+    @CheckForNull
+    Run<?, ?> getRun() {
+        try (ACLContext ignored = ACL.as(ACL.SYSTEM)) {
+            return Run.fromExternalizableId(build);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return state + (checkRun ? " check run '" : " '") + context + "' for " + account + '/' + repo + '@' + sha;
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append only journal of the statuses not delivered yet, so they survive a controller restart.
+ *
+ * Each line of {@code $JENKINS_HOME/github-notify-outbox.log} either adds a status ({@code +id created payload}) or marks
+ * it as done ({@code -id}). Writes are buffered and synced to disk in batches every {@link #SYNC_INTERVAL_MILLIS}, so a
+ * status queued less than that before a crash may be lost. The journal is compacted into the pending statuses on startup
+ * and whenever most of its records are done.
+ *
+ * The pending statuses are queued again in their original order on startup, and every {@link #REPLAY_INTERVAL_MILLIS}
+ * for the ones whose delivery failed for a transient reason. A status is given up after {@link #MAX_ATTEMPTS} failed
+ * deliveries or once it is older than {@link #MAX_AGE_MILLIS}. Why the last statuses given up or rejected by GitHub were
+ * not delivered is kept in memory, for the steps resumed after a restart that were waiting for them.
+ */
+@Extension
+public class StatusOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(StatusOutbox.class.getName());
+
+    static final long SYNC_INTERVAL_MILLIS = SystemProperties.getLong(StatusOutbox.class.getName() + ".syncIntervalMillis", 200L);
+
+    static final int MAX_ATTEMPTS = SystemProperties.getInteger(StatusOutbox.class.getName() + ".maxAttempts", 10);
+
+    static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(
+            SystemProperties.getLong(StatusOutbox.class.getName() + ".maxAgeHours", 24L));
+
+    static final long REPLAY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(
+            SystemProperties.getLong(StatusOutbox.class.getName() + ".replayIntervalMinutes", 5L));
+
+    /**
+     * The journal is not compacted while it has fewer records than this, however many are done.
+     */
+    static final int COMPACTION_MIN_RECORDS = SystemProperties.getInteger(StatusOutbox.class.getName() + ".compactionMinRecords", 1000);
+
+    static final String FILE_NAME = "github-notify-outbox.log";
+
+    static final int MAX_FAILURES = 1000;
+
+    /**
+     * Statuses journaled and not done yet, in journal order, guarded by this.
+     */
+    private final TreeMap<Long, Entry> pending = new TreeMap<>();
+
+    /**
+     * Why the statuses given up or rejected were not delivered, by id, least recently used first, guarded by this.
+     */
+    private final Map<Long, String> failures = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > MAX_FAILURES;
+        }
+    };
+
+    private long nextId = 1;
+
+    /**
+     * Number of records in the journal file, pending or not.
+     */
+    private long records;
+
+    private FileOutputStream file;
+
+    private OutputStream out;
+
+    private boolean dirty;
+
+    private ScheduledFuture<?> syncTask;
+
+    @Nonnull
+    public static StatusOutbox get() {
+        return ExtensionList.lookupSingleton(StatusOutbox.class);
+    }
+
+    /**
+     * Journals a status about to be queued for delivery.
+     *
+     * @return the journal id of the status, or 0 if it could not be journaled
+     */
+    synchronized long append(@Nonnull StatusNotification notification) {
+        long id = nextId++;
+        Entry entry = new Entry(notification, System.currentTimeMillis());
+        try {
+            write(entry.record(id));
+            entry.queued = true;
+            pending.put(id, entry);
+            return id;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to journal GitHub status " + notification + ", it will be lost on restart", e);
+            return 0;
+        }
+    }
+
+    /**
+     * Marks as done every journaled status for the same target up to the given id, as a newer status for that target
+     * has been delivered or the status can never be delivered.
+     */
+    synchronized void done(@Nonnull StatusNotification notification, long upToId) {
+        done(notification, upToId, null);
+    }
+
+    /**
+     * Marks as done every journaled status for the same target up to the given id, as GitHub rejected the status for
+     * the given reason and will never accept it.
+     */
+    synchronized void rejected(@Nonnull StatusNotification notification, long upToId, @Nonnull String reason) {
+        done(notification, upToId, reason);
+    }
+
+    private void done(StatusNotification notification, long upToId, String failure) {
+        StatusTarget target = new StatusTarget(notification);
+        for (Iterator<Map.Entry<Long, Entry>> it = pending.headMap(upToId, true).entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Entry> entry = it.next();
+            if (target.equals(new StatusTarget(entry.getValue().notification))) {
+                if (failure != null) {
+                    failures.put(entry.getKey(), failure);
+                }
+                remove(it, entry);
+            }
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Records a failed delivery, for a transient reason, of every journaled status for the same target up to the given
+     * id. They are queued again by the next replay, unless they have failed too many times or are too old.
+     */
+    synchronized void failed(@Nonnull StatusNotification notification, long upToId) {
+        failed(notification, upToId, true);
+    }
+
+    /**
+     * Records that every journaled status for the same target up to the given id was not sent because its endpoint is
+     * considered unavailable, which does not count as a failed delivery. They are queued again by the next replay,
+     * unless they are too old.
+     */
+    synchronized void unavailable(@Nonnull StatusNotification notification, long upToId) {
+        failed(notification, upToId, false);
+    }
+
+    private void failed(StatusNotification notification, long upToId, boolean attempted) {
+        StatusTarget target = new StatusTarget(notification);
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Long, Entry>> it = pending.headMap(upToId, true).entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Entry> entry = it.next();
+            Entry e = entry.getValue();
+            if (target.equals(new StatusTarget(e.notification))) {
+                e.queued = false;
+                if (attempted) {
+                    e.attempts++;
+                }
+                if (e.attempts >= MAX_ATTEMPTS || now - e.created > MAX_AGE_MILLIS) {
+                    LOGGER.log(Level.WARNING, "Giving up GitHub status {0} after {1} failed deliveries", new Object[] {e.notification, e.attempts});
+                    failures.put(entry.getKey(), "Gave up after " + e.attempts + " failed deliveries");
+                    remove(it, entry);
+                }
+            }
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Queues again, in their original order, the journaled statuses that are not queued already.
+     *
+     * @return the number of statuses queued
+     */
+    int replay() {
+        List<Map.Entry<Long, Entry>> toReplay = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Long, Entry> entry : pending.entrySet()) {
+                if (!entry.getValue().queued) {
+                    entry.getValue().queued = true;
+                    toReplay.add(entry);
+                }
+            }
+        }
+        StatusDeliveryQueue queue = StatusDeliveryQueue.get();
+        for (Map.Entry<Long, Entry> entry : toReplay) {
+            queue.replay(entry.getValue().notification, entry.getKey());
+        }
+        return toReplay.size();
+    }
+
+    /**
+     * Whether the status journaled with the given id is not delivered yet.
+     */
+    synchronized boolean isPending(long id) {
+        return pending.containsKey(id);
+    }
+
+    /**
+     * Why the status journaled with the given id was given up or rejected, null if it was delivered, replaced by a
+     * newer status, or given up too long ago to remember.
+     */
+    @CheckForNull
+    synchronized String getFailure(long id) {
+        return failures.get(id);
+    }
+
+    /**
+     * Number of journaled statuses not delivered yet.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Number of records in the journal file, including the ones already done.
+     */
+    synchronized long getRecordCount() {
+        return records;
+    }
+
+    private void remove(Iterator<Map.Entry<Long, Entry>> it, Map.Entry<Long, Entry> entry) {
+        try {
+            write("-" + entry.getKey());
+            it.remove();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to journal the delivery of GitHub status " + entry.getValue().notification, e);
+        }
+    }
+
+    private void write(String line) throws IOException {
+        if (out == null) {
+            open();
+        }
+        out.write((line + '\n').getBytes(StandardCharsets.UTF_8));
+        records++;
+        dirty = true;
+    }
+
+    private void open() throws IOException {
+        file = new FileOutputStream(getFile(), true);
+        out = new BufferedOutputStream(file);
+        syncTask = Timer.get().scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flushes the pending writes and syncs them to disk, a single sync covers every write since the previous one.
+     */
+    synchronized void sync() {
+        if (!dirty || out == null) {
+            return;
+        }
+        try {
+            out.flush();
+            file.getChannel().force(false);
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to sync the GitHub status outbox", e);
+        }
+    }
+
+    /**
+     * Rewrites the journal once most of its records are done, so it does not grow for as long as the controller runs.
+     */
+    private void compactIfNeeded() {
+        if (records >= COMPACTION_MIN_RECORDS && pending.size() * 2 < records) {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to compact the GitHub status outbox", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with the pending statuses only, keeping their ids.
+     */
+    synchronized void compact() throws IOException {
+        close();
+        File journal = getFile();
+        File compacted = new File(journal.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(compacted); OutputStream os = new BufferedOutputStream(fos)) {
+            for (Map.Entry<Long, Entry> entry : pending.entrySet()) {
+                os.write((entry.getValue().record(entry.getKey()) + '\n').getBytes(StandardCharsets.UTF_8));
+            }
+            os.flush();
+            fos.getChannel().force(false);
+        }
+        Files.move(compacted.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        records = pending.size();
+    }
+
+    /**
+     * Reads the journal left by the previous run and compacts it into the pending statuses, which are replayed by
+     * {@link #replay()}. The journal is the reference, any status known in memory only is forgotten.
+     */
+    synchronized void recover() throws IOException {
+        pending.clear();
+        File journal = getFile();
+        if (!journal.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(journal.toPath()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    if (line.startsWith("+")) {
+                        String[] fields = line.substring(1).split(" ", 3);
+                        pending.put(Long.parseLong(fields[0]), new Entry(decode(fields[2]), Long.parseLong(fields[1])));
+                    } else if (line.startsWith("-")) {
+                        pending.remove(Long.parseLong(line.substring(1)));
+                    }
+                } catch (RuntimeException e) {
+                    // a torn write at the end of the journal, or a status of a format we no longer understand
+                    LOGGER.log(Level.FINE, "Ignoring unreadable GitHub status outbox record", e);
+                }
+            }
+        }
+        nextId = Math.max(nextId, pending.isEmpty() ? 1 : pending.lastKey() + 1);
+        compact();
+    }
+
+    synchronized void close() {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
+        }
+        sync();
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to close the GitHub status outbox", e);
+            }
+            out = null;
+            file = null;
+        }
+    }
+
+    private static File getFile() {
+        return new File(Jenkins.get().getRootDir(), FILE_NAME);
+    }
+
+    private static String encode(StatusNotification notification) {
+        return Base64.getEncoder().encodeToString(Jenkins.XSTREAM2.toXML(notification).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StatusNotification decode(String payload) {
+        return (StatusNotification) Jenkins.XSTREAM2.fromXML(new String(Base64.getDecoder().decode(payload), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues again, in their original order, the statuses that were not delivered before the controller stopped.
+     *
+     * The journal is recovered before any build can resume and queue new statuses, the deliveries happen in background.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void recoverOnStartup() {
+        try {
+            get().recover();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read the GitHub status outbox", e);
+            return;
+        }
+        int count = get().getPendingCount();
+        if (count > 0) {
+            LOGGER.log(Level.INFO, "Delivering {0} GitHub statuses queued before the restart", count);
+            Timer.get().submit(() -> get().replay());
+        }
+    }
+
+    @Terminator
+    public static void shutdown() {
+        for (StatusOutbox outbox : ExtensionList.lookup(StatusOutbox.class)) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * A journaled status, with the number of failed deliveries since the controller started, guarded by the outbox.
+     */
+    private static final class Entry {
+        private final StatusNotification notification;
+        private final long created;
+        private int attempts;
+        /**
+         * Whether the status is in the {@link StatusDeliveryQueue}, so it is not replayed twice.
+         */
+        private boolean queued;
+
+        Entry(StatusNotification notification, long created) {
+            this.notification = notification;
+            this.created = created;
+        }
+
+        String record(long id) {
+            return "+" + id + ' ' + created + ' ' + encode(notification);
+        }
+    }
+
+    /**
+     * Periodically queues again the statuses whose delivery failed for a transient reason.
+     */
+    @Extension
+    public static final class Replayer extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return REPLAY_INTERVAL_MILLIS;
+        }
+
+        @Override
+        protected void doRun() {
+            int count = StatusOutbox.get().replay();
+            if (count > 0) {
+                LOGGER.log(Level.FINE, "Delivering again {0} GitHub statuses that failed", count);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.Util;
+
+import javax.annotation.Nonnull;
+import java.util.Locale;
+
+/**
+ * What GitHub keeps a single status for: a context on a commit of a repository of an API endpoint, as sent by a job with
+ * some credentials.
+ *
+ * A check run with the same name as a status context is a different target. The job and credentials are part of the
+ * target so the statuses of a job never replace, or fail with the credentials of, those of another job. The hash is
+ * compared lower-cased, a short hash is only the same target as the very same short hash.
+ */
+final class StatusTarget {
+    private final String job;
+    private final String credentialsId;
+    private final String gitApiUrl;
+    private final String account;
+    private final String repo;
+    private final String sha;
+    private final String context;
+    private final boolean checkRun;
+
+    StatusTarget(@Nonnull StatusNotification notification) {
+        this.job = Util.fixNull(notification.getJob());
+        this.credentialsId = Util.fixNull(notification.getCredentialsId());
+        this.gitApiUrl = Util.fixNull(notification.getGitApiUrl());
+        this.account = Util.fixNull(notification.getAccount());
+        this.repo = Util.fixNull(notification.getRepo());
+        this.sha = Util.fixNull(notification.getSha()).toLowerCase(Locale.ENGLISH);
+        this.context = Util.fixNull(notification.getContext());
+        this.checkRun = notification.isCheckRun();
+    }
+
+    /**
+     * @return the API endpoint, empty for GitHub.com
+     */
+    @Nonnull
+    String getGitApiUrl() {
+        return gitApiUrl;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StatusTarget)) {
+            return false;
+        }
+        StatusTarget other = (StatusTarget) o;
+        return job.equals(other.job) && credentialsId.equals(other.credentialsId) && gitApiUrl.equals(other.gitApiUrl) && account.equals(other.account) && repo.equals(other.repo)
+                && sha.equals(other.sha) && context.equals(other.context) && checkRun == other.checkRun;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = job.hashCode();
+        result = 31 * result + credentialsId.hashCode();
+        result = 31 * result + gitApiUrl.hashCode();
+        result = 31 * result + account.hashCode();
+        result = 31 * result + repo.hashCode();
+        result = 31 * result + sha.hashCode();
+        result = 31 * result + context.hashCode();
+        result = 31 * result + (checkRun ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return (checkRun ? "check run '" : "'") + context + "' for " + account + '/' + repo + '@' + sha;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import hudson.util.FormValidation;
+
+import javax.annotation.Nonnull;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least recently used cache of form validation results, so editing a job configuration does not query
+ * GitHub on every keystroke.
+ *
+ * Successful and failed validations have their own time to live, a failure is usually fixed soon by the user.
+ */
+final class ValidationCache {
+
+    /**
+     * Use as time to live for results that never change, like the existence of a commit.
+     */
+    static final long FOREVER = Long.MAX_VALUE;
+
+    private final Map<String, Entry> entries;
+
+    ValidationCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached result of the validation, running it if there is none or it has expired.
+     */
+    @Nonnull
+    FormValidation validate(@Nonnull String key, long okTtlMillis, long errorTtlMillis, @Nonnull Validation validation) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.currentTimeMillis() < entry.expires) {
+                return entry.result;
+            }
+        }
+        FormValidation result;
+        long ttl;
+        try {
+            result = validation.run();
+            ttl = result.kind == FormValidation.Kind.OK ? okTtlMillis : errorTtlMillis;
+        } catch (Exception e) {
+            result = FormValidation.error(e.getMessage());
+            ttl = errorTtlMillis;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            entries.put(key, new Entry(result, ttl >= FOREVER - now ? FOREVER : now + ttl));
+        }
+        return result;
+    }
+
+    /**
+     * Builds a cache key from the values that identify a validation.
+     */
+    static String key(String... values) {
+        StringBuilder key = new StringBuilder();
+        for (String value : values) {
+            key.append(value == null ? "" : value).append('\u0000');
+        }
+        return key.toString();
+    }
+
+    interface Validation {
+        @Nonnull
+        FormValidation run() throws Exception;
+    }
+
+    private static final class Entry {
+        private final FormValidation result;
+        private final long expires;
+
+        Entry(FormValidation result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+}
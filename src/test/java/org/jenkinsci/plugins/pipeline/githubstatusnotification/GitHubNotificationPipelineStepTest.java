@@ -8,32 +8,69 @@ import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.CredentialsStore;
 import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
 import com.cloudbees.plugins.credentials.domains.Domain;
+import com.gargoylesoftware.htmlunit.html.HtmlForm;
+import hudson.XmlFile;
+import hudson.model.Action;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
+import jenkins.metrics.api.Metrics;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceOwner;
+import org.jenkinsci.plugins.github_branch_source.GitHubAppCredentials;
+import org.jenkinsci.plugins.github_branch_source.GitHubSCMSource;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+import org.kohsuke.github.GHCheckRun;
+import org.kohsuke.github.GHCheckRunBuilder;
 import org.kohsuke.github.GHCommit;
+import org.kohsuke.github.GHCommitState;
+import org.kohsuke.github.GHRateLimit;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GHUser;
 import org.kohsuke.github.GitHub;
 import org.kohsuke.github.GitHubBuilder;
+import org.kohsuke.github.HttpException;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
+import org.mockito.Mockito;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 
 @RunWith (PowerMockRunner.class)
-@PrepareForTest ({GitHubStatusNotificationStep.class})
+@PrepareForTest ({GitHubStatusNotificationStep.class, GHCheckRunBuilder.class, GHCheckRun.class})
 @PowerMockIgnore ({"javax.crypto.*" })
 public class GitHubNotificationPipelineStepTest {
 
@@ -166,6 +203,69 @@ public class GitHubNotificationPipelineStepTest {
         jenkins.assertLogContains(GitHubStatusNotificationStep.INVALID_COMMIT, b1);
     }
 
+    @Test
+    public void buildWithWrongCommitWithoutValidationMustFail() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(repo.createCommitStatus(anyString(), Matchers.<GHCommitState>any(), anyString(), anyString(), anyString()))
+                .thenThrow(new HttpException("No commit found for SHA", 422, "Unprocessable Entity", "https://api.github.com"));
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains(GitHubStatusNotificationStep.INVALID_COMMIT, b1);
+        Mockito.verify(gh, Mockito.never()).getUser(anyString());
+    }
+
+    @Test
+    public void buildWithStatusesLimitReportsGitHubError() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(repo.createCommitStatus(anyString(), Matchers.<GHCommitState>any(), anyString(), anyString(), anyString()))
+                .thenThrow(new HttpException("This SHA and context has reached the maximum number of statuses.", 422,
+                        "Unprocessable Entity", "https://api.github.com"));
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains("maximum number of statuses", b1);
+        jenkins.assertLogNotContains(GitHubStatusNotificationStep.INVALID_COMMIT, b1);
+    }
+
     @Test
     public void buildWithInferWithoutCommitMustFail() throws Exception {
 
@@ -320,7 +420,7 @@ public class GitHubNotificationPipelineStepTest {
     }
 
     @Test
-    public void buildWithFolderCredentials() throws Exception {
+    public void buildSkipsDuplicatedStatuses() throws Exception {
 
         GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
         PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
@@ -336,13 +436,74 @@ public class GitHubNotificationPipelineStepTest {
         PowerMockito.when(gh.getUser(anyString())).thenReturn(user);
         PowerMockito.when((repo.getCommit(anyString()))).thenReturn(commit);
 
-        Folder f = jenkins.jenkins.createProject(Folder.class, "folder" + jenkins.jenkins.getItems().size());
-        CredentialsStore folderStore = getFolderStore(f);
-        folderStore.addCredentials(Domain.global(),
-                new DummyCredentials(CredentialsScope.GLOBAL, "user", "password"));
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
 
-        WorkflowJob p = f.createProject(WorkflowJob.class, "p");
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "for (def status in ['SUCCESS', 'SUCCESS', 'PENDING', 'SUCCESS']) {\n" +
+                "  githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: status, targetUrl: 'http://www.cloudbees.com'\n" +
+                "}"
+        ));
+
+        // without the option every status is sent
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(p.scheduleBuild2(0).waitForStart()));
+        Mockito.verify(repo, Mockito.times(3)).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487",
+                GHCommitState.SUCCESS, "http://www.cloudbees.com", "All tests are OK", "ATH Results");
+        assertEquals(0, StatusDeliveryQueue.get().getSuppressed());
+
+        // with it only a status identical to the last one delivered for its context is skipped
+        GitHubNotifyConfiguration.get().setSkipDuplicateStatuses(true);
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(p.scheduleBuild2(0).waitForStart()));
+        Mockito.verify(repo, Mockito.times(5)).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487",
+                GHCommitState.SUCCESS, "http://www.cloudbees.com", "All tests are OK", "ATH Results");
+        Mockito.verify(repo, Mockito.times(2)).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487",
+                GHCommitState.PENDING, "http://www.cloudbees.com", "All tests are OK", "ATH Results");
+        assertEquals(1, StatusDeliveryQueue.get().getSuppressed());
+
+        // once its time to live is over, the last status delivered may have been replaced by anyone and is sent again
+        long ttl = DeliveredStatuses.TTL_MILLIS;
+        DeliveredStatuses.TTL_MILLIS = 0;
+        try {
+            jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(p.scheduleBuild2(0).waitForStart()));
+        } finally {
+            DeliveredStatuses.TTL_MILLIS = ttl;
+        }
+        Mockito.verify(repo, Mockito.times(8)).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487",
+                GHCommitState.SUCCESS, "http://www.cloudbees.com", "All tests are OK", "ATH Results");
+        assertEquals(1, StatusDeliveryQueue.get().getSuppressed());
+    }
+
+    @Test
+    public void buildReusesCachedClient() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        GHUser user = PowerMockito.mock(GHUser.class);
+        GHCommit commit = PowerMockito.mock(GHCommit.class);
+        PowerMockito.when(user.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(gh.getUser(anyString())).thenReturn(user);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when((repo.getCommit(anyString()))).thenReturn(commit);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
         p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'PENDING', targetUrl: 'http://www.cloudbees.com'\n" +
                 "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
                         "credentialsId: 'dummy', description: 'All tests are OK', " +
                         "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
@@ -350,15 +511,21 @@ public class GitHubNotificationPipelineStepTest {
         ));
         WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
         jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        assertEquals(1, GitHubClientCache.get().getMisses());
+        assertEquals(1, GitHubClientCache.get().getHits());
+
+        GitHubNotifyTimingsAction timings = b1.getAction(GitHubNotifyTimingsAction.class);
+        assertEquals(2, timings.getEntries().size());
+        assertEquals(GHCommitState.SUCCESS, timings.getEntries().get(1).getState());
+        assertEquals(null, timings.getEntries().get(1).getError());
     }
 
     @Test
-    public void buildEnterprise() throws Exception {
+    public void buildRevalidatesCredentialsAfterTtlOrChange() throws Exception {
 
         GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
         PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
         PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
-        PowerMockito.when(ghb.withEndpoint("https://api.example.com")).thenReturn(ghb);
         PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
         GitHub gh = PowerMockito.mock(GitHub.class);
         PowerMockito.when(ghb.build()).thenReturn(gh);
@@ -368,6 +535,7 @@ public class GitHubNotificationPipelineStepTest {
         GHCommit commit = PowerMockito.mock(GHCommit.class);
         PowerMockito.when(user.getRepository(anyString())).thenReturn(repo);
         PowerMockito.when(gh.getUser(anyString())).thenReturn(user);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
         PowerMockito.when((repo.getCommit(anyString()))).thenReturn(commit);
 
         Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
@@ -378,22 +546,1149 @@ public class GitHubNotificationPipelineStepTest {
                 "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
                         "credentialsId: 'dummy', description: 'All tests are OK', " +
                         "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
-                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', gitApiUrl:'https://api.example.com'"
+                        "status: 'PENDING', targetUrl: 'http://www.cloudbees.com'\n" +
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com'"
+        ));
+
+        // validated once, then trusted for the time to live
+        GitHubNotifyConfiguration.get().setCredentialsValidationTtl(300);
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(p.scheduleBuild2(0).waitForStart()));
+        Mockito.verify(gh, Mockito.times(1)).isCredentialValid();
+
+        // an expired validation is done again on each notification
+        GitHubNotifyConfiguration.get().setCredentialsValidationTtl(0);
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(p.scheduleBuild2(0).waitForStart()));
+        Mockito.verify(gh, Mockito.times(3)).isCredentialValid();
+
+        // a rotated secret gets a new client that is validated again, even within the time to live
+        GitHubNotifyConfiguration.get().setCredentialsValidationTtl(300);
+        SystemCredentialsProvider.getInstance().getCredentials().remove(dummy);
+        SystemCredentialsProvider.getInstance().getCredentials().add(new DummyCredentials(CredentialsScope.GLOBAL, "user", "rotated"));
+        SystemCredentialsProvider.getInstance().save();
+        long misses = GitHubClientCache.get().getMisses();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(p.scheduleBuild2(0).waitForStart()));
+        assertEquals(misses + 1, GitHubClientCache.get().getMisses());
+        Mockito.verify(gh, Mockito.times(4)).isCredentialValid();
+    }
+
+    @Test
+    public void inferenceIsDoneOncePerBuild() throws Exception {
+
+        GitHubSCMSource source = PowerMockito.mock(GitHubSCMSource.class);
+        PowerMockito.when(source.getScanCredentialsId()).thenReturn("dummy");
+        PowerMockito.when(source.getRepoOwner()).thenReturn("raul-arabaolaza");
+        PowerMockito.when(source.getRepository()).thenReturn("acceptance-test-harness");
+        PowerMockito.when(source.getApiUri()).thenReturn("https://api.github.com");
+        ItemGroup owner = Mockito.mock(ItemGroup.class, Mockito.withSettings().extraInterfaces(SCMSourceOwner.class));
+        PowerMockito.when(((SCMSourceOwner) owner).getSCMSources()).thenReturn(Collections.<SCMSource>singletonList(source));
+        Job job = Mockito.mock(Job.class);
+        PowerMockito.when(job.getParent()).thenReturn(owner);
+        Run run = Mockito.mock(Run.class);
+        PowerMockito.when(run.getParent()).thenReturn(job);
+        PowerMockito.when(run.getExternalizableId()).thenReturn("p#1");
+
+        assertEquals("dummy", InferredGitHubData.of(run).getCredentialsId(run));
+        assertEquals("raul-arabaolaza", InferredGitHubData.of(run).getAccount(run));
+        assertEquals("acceptance-test-harness", InferredGitHubData.of(run).getRepo(run));
+        assertEquals(null, InferredGitHubData.of(run).getGitApiUrl(run));
+
+        // the second and following inferences of the build reuse the first one, and nothing is saved with the build
+        Mockito.verify((SCMSourceOwner) owner, Mockito.times(1)).getSCMSources();
+        Mockito.verify(source, Mockito.times(1)).getRepoOwner();
+        Mockito.verify(run, Mockito.never()).addAction(Matchers.<Action>any());
+
+        // a job created again with the same name starts over at build #1, which is inferred again
+        GitHubSCMSource other = PowerMockito.mock(GitHubSCMSource.class);
+        PowerMockito.when(other.getScanCredentialsId()).thenReturn("dummy");
+        PowerMockito.when(other.getRepoOwner()).thenReturn("jenkinsci");
+        PowerMockito.when(other.getRepository()).thenReturn("acceptance-test-harness");
+        ItemGroup recreatedOwner = Mockito.mock(ItemGroup.class, Mockito.withSettings().extraInterfaces(SCMSourceOwner.class));
+        PowerMockito.when(((SCMSourceOwner) recreatedOwner).getSCMSources()).thenReturn(Collections.<SCMSource>singletonList(other));
+        Job recreated = Mockito.mock(Job.class);
+        PowerMockito.when(recreated.getParent()).thenReturn(recreatedOwner);
+        Run recreatedRun = Mockito.mock(Run.class);
+        PowerMockito.when(recreatedRun.getParent()).thenReturn(recreated);
+        PowerMockito.when(recreatedRun.getExternalizableId()).thenReturn("p#1");
+        assertEquals("jenkinsci", InferredGitHubData.of(recreatedRun).getAccount(recreatedRun));
+    }
+
+    @Test
+    public void credentialsIndexIsDroppedOnSaveAndExpires() throws Exception {
+
+        CredentialsIndex index = CredentialsIndex.get();
+        assertEquals(null, index.find(null, "dummy"));
+
+        // the index keeps answering until a credentials store is saved
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+        assertEquals(null, index.find(null, "dummy"));
+        SystemCredentialsProvider.getInstance().save();
+        assertEquals(dummy, index.find(null, "dummy"));
+        assertEquals(Collections.singletonList(dummy), index.list(null));
+
+        // changes that are not saved are only seen once the entry expires
+        SystemCredentialsProvider.getInstance().getCredentials().remove(dummy);
+        assertEquals(dummy, index.find(null, "dummy"));
+        long ttl = CredentialsIndex.TTL_MILLIS;
+        CredentialsIndex.TTL_MILLIS = 0;
+        try {
+            Thread.sleep(10);
+            assertEquals(null, index.find(null, "dummy"));
+            assertTrue(index.list(null).isEmpty());
+        } finally {
+            CredentialsIndex.TTL_MILLIS = ttl;
+        }
+    }
+
+    @Test
+    public void validationCacheKeepsResultsForTheirTimeToLive() throws Exception {
+
+        ValidationCache cache = new ValidationCache(2);
+        final AtomicInteger runs = new AtomicInteger();
+        ValidationCache.Validation ok = () -> {
+            runs.incrementAndGet();
+            return FormValidation.ok();
+        };
+        ValidationCache.Validation error = () -> {
+            runs.incrementAndGet();
+            throw new IOException("Repository does not exist");
+        };
+
+        // successful results are kept, failures are cached for their own time to live
+        assertEquals(FormValidation.Kind.OK, cache.validate("a", ValidationCache.FOREVER, 0, ok).kind);
+        assertEquals(FormValidation.Kind.OK, cache.validate("a", ValidationCache.FOREVER, 0, ok).kind);
+        assertEquals(1, runs.get());
+        assertEquals("Repository does not exist", cache.validate("b", ValidationCache.FOREVER, 60000, error).getMessage());
+        assertEquals(FormValidation.Kind.ERROR, cache.validate("b", ValidationCache.FOREVER, 60000, error).kind);
+        assertEquals(2, runs.get());
+        cache.validate("c", ValidationCache.FOREVER, 0, error);
+        Thread.sleep(10);
+        cache.validate("c", ValidationCache.FOREVER, 0, error);
+        assertEquals(4, runs.get());
+
+        // the least recently used entry is evicted beyond the maximum
+        cache.validate("a", ValidationCache.FOREVER, 0, ok);
+        assertEquals(5, runs.get());
+        assertNotEquals(ValidationCache.key("a", "b"), ValidationCache.key("ab", null));
+    }
+
+    @Test
+    public void connectorRevalidatesCachedResponsesOfEachToken() throws Exception {
+
+        try (StubGitHub stub = new StubGitHub(0, 5000)) {
+            GitHub a = new GitHubBuilder().withEndpoint(stub.getUrl()).withOAuthToken("a")
+                    .withConnector(GitHubConnectors.get().connector(Proxy.NO_PROXY)).build();
+            GitHub b = new GitHubBuilder().withEndpoint(stub.getUrl()).withOAuthToken("b")
+                    .withConnector(GitHubConnectors.get().connector(Proxy.NO_PROXY)).build();
+
+            a.getRepository("account/repo");
+            a.getRepository("account/repo");
+            b.getRepository("account/repo");
+            b.getRepository("account/repo");
+            a.getRepository("account/repo");
+
+            // cached responses are revalidated, and never sent or revalidated with another token
+            assertEquals(Arrays.asList("token a 200", "token a if-none-match 304", "token b 200",
+                    "token b if-none-match 304", "token a 200"), stub.getRequests("/repos/account/repo"));
+        }
+    }
+
+    @Test
+    public void connectorsShareConnectionsAndApplyTimeouts() throws Exception {
+
+        try (StubGitHub stub = new StubGitHub(0, 5000)) {
+            GitHub a = new GitHubBuilder().withEndpoint(stub.getUrl()).withOAuthToken("a")
+                    .withConnector(GitHubConnectors.get().connector(Proxy.NO_PROXY)).build();
+            GitHub b = new GitHubBuilder().withEndpoint(stub.getUrl()).withOAuthToken("b")
+                    .withConnector(GitHubConnectors.get().connector(Proxy.NO_PROXY)).build();
+
+            a.getRepository("account/repo");
+            b.getRepository("account/other");
+            a.getRepository("account/other");
+
+            // every connector goes through the same pool of connections
+            assertEquals(1, stub.getConnections());
+        }
+
+        GitHubNotifyConfiguration.get().setReadTimeout(1);
+        try (StubGitHub stub = new StubGitHub(3000, 5000)) {
+            GitHub gh = new GitHubBuilder().withEndpoint(stub.getUrl()).withOAuthToken("a")
+                    .withConnector(GitHubConnectors.get().connector(Proxy.NO_PROXY)).build();
+            try {
+                gh.getRepository("account/repo");
+                fail("The configured read timeout should have expired");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void configurationIsSavedOnceAndKeepsClientsOfUnchangedConnections() throws Exception {
+
+        GitHubClientCache cache = GitHubClientCache.get();
+        GitHubClientCache.ClientFactory factory = () -> PowerMockito.mock(GitHub.class);
+        cache.getOrCreate("dummy", null, "user", Secret.fromString("token"), null, Proxy.NO_PROXY, factory);
+        assertEquals(1, cache.getSize());
+
+        // submitting the form unchanged saves once and keeps the clients
+        ConfigurationSaves.COUNT.set(0);
+        jenkins.configRoundtrip();
+        assertEquals(1, ConfigurationSaves.COUNT.get());
+        assertEquals(1, cache.getSize());
+        GitHubNotifyConfiguration.get().setReadTimeout(GitHubNotifyConfiguration.DEFAULT_READ_TIMEOUT);
+        assertEquals(1, cache.getSize());
+
+        // a new connection setting drops them once the whole form is bound
+        ConfigurationSaves.COUNT.set(0);
+        HtmlForm form = jenkins.createWebClient().goTo("configure").getFormByName("config");
+        form.getInputByName("_.readTimeout").setValueAttribute("5");
+        jenkins.submit(form);
+        assertEquals(1, ConfigurationSaves.COUNT.get());
+        assertEquals(0, cache.getSize());
+        assertEquals(5, GitHubNotifyConfiguration.get().getReadTimeout());
+        assertEquals(5, new GitHubNotifyConfiguration().getReadTimeout());
+    }
+
+    @TestExtension("configurationIsSavedOnceAndKeepsClientsOfUnchangedConnections")
+    public static class ConfigurationSaves extends SaveableListener {
+        static final AtomicInteger COUNT = new AtomicInteger();
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof GitHubNotifyConfiguration) {
+                COUNT.incrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void rateLimitGaugesHideCredentialsIds() throws Exception {
+
+        RateLimitScheduler.get().bucket("https://ghe.example.com/api/v3", "secret-token-id");
+
+        Set<String> gauges = Metrics.metricRegistry().getGauges().keySet();
+        assertTrue(gauges.contains("github.notify.ratelimit.waits"));
+        assertTrue(gauges.contains("github.notify.ghe_example_com_api_v3.ratelimit." + NotifyMetrics.hash("secret-token-id") + ".remaining"));
+        for (String gauge : gauges) {
+            assertTrue(gauge, !gauge.contains("secret-token-id"));
+        }
+    }
+
+    @Test
+    public void appTokensAreSharedUntilTheyExpire() throws Exception {
+
+        GitHubAppCredentials app = Mockito.mock(GitHubAppCredentials.class);
+        PowerMockito.when(app.getAppID()).thenReturn("12345");
+        PowerMockito.when(app.getPrivateKey()).thenReturn(Secret.fromString("key"));
+        PowerMockito.when(app.getPassword()).thenReturn(Secret.fromString("configured-owner-token"));
+        final AtomicInteger minted = new AtomicInteger();
+        PowerMockito.when(app.withOwner(anyString())).thenAnswer(invocation -> {
+            GitHubAppCredentials installation = Mockito.mock(GitHubAppCredentials.class);
+            PowerMockito.when(installation.getPassword()).thenReturn(
+                    Secret.fromString(invocation.getArguments()[0] + "-token-" + minted.incrementAndGet()));
+            return installation;
+        });
+        GitHubAppTokens tokens = GitHubAppTokens.get();
+
+        // one token per installation owner, shared by every notification
+        assertEquals("octo-token-1", tokens.token("app", app, "octo").getPlainText());
+        assertEquals("octo-token-1", tokens.token("app", app, "octo").getPlainText());
+        assertEquals("other-token-2", tokens.token("app", app, "other").getPlainText());
+        assertEquals("configured-owner-token", tokens.token("app", app, null).getPlainText());
+        assertEquals(2, tokens.getMinted());
+
+        // a new private key or an unauthorized response mints a new token
+        PowerMockito.when(app.getPrivateKey()).thenReturn(Secret.fromString("rotated"));
+        assertEquals("octo-token-3", tokens.token("app", app, "octo").getPlainText());
+        assertEquals(2, tokens.getSize());
+        tokens.invalidate("app");
+        assertEquals(0, tokens.getSize());
+        assertEquals("octo-token-4", tokens.token("app", app, "octo").getPlainText());
+
+        // tokens are renewed once their time to live is over
+        long ttl = GitHubAppTokens.TOKEN_TTL_MILLIS;
+        assertEquals(TimeUnit.MINUTES.toMillis(50), ttl);
+        GitHubAppTokens.TOKEN_TTL_MILLIS = 0;
+        try {
+            assertEquals("third-token-5", tokens.token("app", app, "third").getPlainText());
+            assertEquals("third-token-6", tokens.token("app", app, "third").getPlainText());
+        } finally {
+            GitHubAppTokens.TOKEN_TTL_MILLIS = ttl;
+        }
+        assertEquals("octo-token-4", tokens.token("app", app, "octo").getPlainText());
+        assertEquals(6, tokens.getMinted());
+    }
+
+    @Test
+    public void credentialsPoolRotatesByRequestsLeft() throws Exception {
+
+        String ghe = "https://ghe.example.com/api/v3";
+        GitHubNotifyConfiguration.get().setCredentialsPools(Collections.singletonList(new CredentialsPool("pool", "a\nb, c")));
+        RateLimitScheduler scheduler = RateLimitScheduler.get();
+
+        // members never used come first, to learn their rate limit
+        assertEquals("a", CredentialsPool.resolve("pool", ghe));
+        scheduler.bucket(ghe, "a").observe(rateLimited(5000, 100, TimeUnit.MINUTES.toMillis(30)));
+        assertEquals("b", CredentialsPool.resolve("pool", ghe));
+        scheduler.bucket(ghe, "b").observe(rateLimited(5000, 4000, TimeUnit.MINUTES.toMillis(30)));
+        assertEquals("c", CredentialsPool.resolve("pool", ghe));
+        scheduler.bucket(ghe, "c").observe(rateLimited(5000, 4001, TimeUnit.MINUTES.toMillis(30)));
+
+        // then the member with the most requests left, counting the requests sent since its last response
+        assertEquals("c", CredentialsPool.resolve("pool", ghe));
+        assertEquals("b", CredentialsPool.resolve("pool", ghe));
+        assertEquals("c", CredentialsPool.resolve("pool", ghe));
+        assertEquals(3999, scheduler.bucket(ghe, "b").getRemaining());
+        assertEquals(3999, scheduler.bucket(ghe, "c").getRemaining());
+
+        // exhausted members are skipped until their limit resets
+        scheduler.bucket(ghe, "b").observe(rateLimited(5000, 0, TimeUnit.MINUTES.toMillis(20)));
+        scheduler.bucket(ghe, "c").observe(rateLimited(5000, 0, TimeUnit.MINUTES.toMillis(10)));
+        assertEquals("a", CredentialsPool.resolve("pool", ghe));
+
+        // once every member is exhausted, the one resetting first is used
+        scheduler.bucket(ghe, "a").observe(rateLimited(5000, 0, TimeUnit.MINUTES.toMillis(30)));
+        assertEquals("c", CredentialsPool.resolve("pool", ghe));
+
+        // other ids are not pools
+        assertEquals("dummy", CredentialsPool.resolve("dummy", ghe));
+    }
+
+    @Test
+    public void buildWithoutWaitingAndFlush() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false, wait: false\n" +
+                "githubNotifyFlush()"
         ));
         WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
         jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        Mockito.verify(repo).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487", GHCommitState.SUCCESS,
+                "http://www.cloudbees.com", "All tests are OK", "ATH Results");
     }
 
-    private CredentialsStore getFolderStore(Folder f) {
-        Iterable<CredentialsStore> stores = CredentialsProvider.lookupStores(f);
-        CredentialsStore folderStore = null;
-        for (CredentialsStore s : stores) {
-            if (s.getProvider() instanceof FolderCredentialsProvider && s.getContext() == f) {
-                folderStore = s;
-                break;
-            }
+    @Test
+    public void buildWithoutWaitingDeliversOnCallerWhenQueueIsFull() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        final AtomicReference<String> deliveryThread = new AtomicReference<>();
+        PowerMockito.when(repo.createCommitStatus(anyString(), Matchers.any(GHCommitState.class), anyString(), anyString(),
+                anyString())).thenAnswer(invocation -> {
+                    deliveryThread.set(Thread.currentThread().getName());
+                    return null;
+                });
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        int queueSize = StatusDeliveryQueue.QUEUE_SIZE;
+        StatusDeliveryQueue.QUEUE_SIZE = 0;
+        try {
+            WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+            p.setDefinition(new CpsFlowDefinition(
+                    "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                            "credentialsId: 'dummy', description: 'All tests are OK', " +
+                            "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                            "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false, wait: false\n" +
+                    "githubNotifyFlush()"
+            ));
+            WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+            jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        } finally {
+            StatusDeliveryQueue.QUEUE_SIZE = queueSize;
         }
-        return folderStore;
+        // the step thread queuing the status sent it itself
+        assertTrue(deliveryThread.get(), deliveryThread.get().startsWith("GitHub status step"));
+    }
+
+    @Test
+    public void buildResolvesShortShaBeforeQueuing() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        GHCommit commit = PowerMockito.mock(GHCommit.class);
+        PowerMockito.when(commit.getSHA1()).thenReturn("0b5936eb903d439ac0c0bf84940d73128d5e9487");
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(repo.getCommit("0b5936e")).thenReturn(commit);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936e', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false, wait: false\n" +
+                "githubNotifyFlush()"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        // queued with the full hash, so it is coalesced with the statuses sent for the full hash of the commit
+        Mockito.verify(repo).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487", GHCommitState.SUCCESS,
+                "http://www.cloudbees.com", "All tests are OK", "ATH Results");
+    }
+
+    @Test
+    public void statusTargetsAreByJobAndCredentials() throws Exception {
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("echo 'hello'"));
+        WorkflowRun b1 = jenkins.buildAndAssertSuccess(p);
+        WorkflowJob q = jenkins.createProject(WorkflowJob.class, "q");
+        q.setDefinition(new CpsFlowDefinition("echo 'hello'"));
+        WorkflowRun b2 = jenkins.buildAndAssertSuccess(q);
+
+        StatusTarget target = new StatusTarget(new StatusNotification(b1, "dummy", null, "raul-arabaolaza",
+                "acceptance-test-harness", "0b5936eb903d439ac0c0bf84940d73128d5e9487", GHCommitState.SUCCESS, "OK", "ATH", null, false));
+        // the same commit whatever the case of its hash
+        assertEquals(target, new StatusTarget(new StatusNotification(b1, "dummy", null, "raul-arabaolaza",
+                "acceptance-test-harness", "0B5936EB903D439AC0C0BF84940D73128D5E9487", GHCommitState.PENDING, "Running", "ATH", null, false)));
+        assertEquals(target.hashCode(), new StatusTarget(new StatusNotification(b1, "dummy", null, "raul-arabaolaza",
+                "acceptance-test-harness", "0B5936EB903D439AC0C0BF84940D73128D5E9487", GHCommitState.PENDING, "Running", "ATH", null, false)).hashCode());
+        assertNotEquals(target, new StatusTarget(new StatusNotification(b1, "other", null, "raul-arabaolaza",
+                "acceptance-test-harness", "0b5936eb903d439ac0c0bf84940d73128d5e9487", GHCommitState.SUCCESS, "OK", "ATH", null, false)));
+        assertNotEquals(target, new StatusTarget(new StatusNotification(b2, "dummy", null, "raul-arabaolaza",
+                "acceptance-test-harness", "0b5936eb903d439ac0c0bf84940d73128d5e9487", GHCommitState.SUCCESS, "OK", "ATH", null, false)));
+    }
+
+    @Test
+    public void deliveryErrorReleasesEndpointPermit() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(repo.createCommitStatus(anyString(), Matchers.any(GHCommitState.class), anyString(), anyString(),
+                Matchers.eq("Broken"))).thenThrow(new NoClassDefFoundError("broken"));
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+        GitHubNotifyConfiguration.get().setMaxConcurrentRequests(1);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "for (def context in ['Broken', 'ATH Results']) {\n" +
+                "  try {\n" +
+                "    githubNotify account: 'raul-arabaolaza', context: context, " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false\n" +
+                "  } catch (Throwable t) {\n" +
+                "    echo \"${context} failed: ${t}\"\n" +
+                "  }\n" +
+                "}"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains("Broken failed", b1);
+        // the only request slot of the endpoint was given back by the delivery that failed with an error
+        jenkins.assertLogNotContains("ATH Results failed", b1);
+        Mockito.verify(repo).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487", GHCommitState.SUCCESS,
+                "http://www.cloudbees.com", "All tests are OK", "ATH Results");
+    }
+
+    @Test
+    public void buildWithoutWaitingCoalescesStatuses() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        // the first delivery stays in flight until the pipeline has queued the following statuses
+        CountDownLatch queued = new CountDownLatch(1);
+        PowerMockito.when(repo.createCommitStatus(anyString(), Matchers.<GHCommitState>any(), anyString(), anyString(), anyString()))
+                .thenAnswer(invocation -> {
+                    queued.await(30, TimeUnit.SECONDS);
+                    return null;
+                });
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "for (status in ['PENDING', 'SUCCESS', 'FAILURE']) {\n" +
+                "    githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'Tests ' + status, " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: status, targetUrl: 'http://www.cloudbees.com', validate: false, wait: false\n" +
+                "}\n" +
+                "echo 'queued'\n" +
+                "githubNotifyFlush()"
+        ));
+        long coalesced = StatusDeliveryQueue.get().getCoalesced();
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.waitForMessage("queued", b1);
+        queued.countDown();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        // the SUCCESS status was replaced by the FAILURE one while the first delivery was in flight
+        Mockito.verify(repo, Mockito.never()).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487", GHCommitState.SUCCESS,
+                "http://www.cloudbees.com", "Tests SUCCESS", "ATH Results");
+        Mockito.verify(repo, Mockito.times(1)).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487", GHCommitState.FAILURE,
+                "http://www.cloudbees.com", "Tests FAILURE", "ATH Results");
+        assertTrue(StatusDeliveryQueue.get().getCoalesced() > coalesced);
+    }
+
+    @Test
+    public void buildWithoutWaitingFlushReportsFailures() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false, wait: false\n" +
+                "githubNotifyFlush()"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains(GitHubStatusNotificationStep.INVALID_REPO, b1);
+    }
+
+    @Test
+    public void outboxReplaysPendingStatusesAfterRestart() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("echo 'built'"));
+        WorkflowRun b1 = jenkins.buildAndAssertSuccess(p);
+
+        StatusOutbox outbox = StatusOutbox.get();
+        outbox.append(outboxNotification(b1, "Linux", GHCommitState.PENDING));
+        long windows = outbox.append(outboxNotification(b1, "Windows", GHCommitState.SUCCESS));
+        outbox.append(outboxNotification(b1, "Linux", GHCommitState.SUCCESS));
+        outbox.done(outboxNotification(b1, "Windows", GHCommitState.SUCCESS), windows);
+
+        // the controller stops before delivering the Linux statuses
+        outbox.close();
+        outbox.recover();
+        assertEquals(2, outbox.getPendingCount());
+        assertEquals(2, outbox.getRecordCount());
+
+        assertEquals(2, outbox.replay());
+        // already queued, not replayed twice
+        assertEquals(0, outbox.replay());
+        long deadline = System.currentTimeMillis() + 30000;
+        while (outbox.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, outbox.getPendingCount());
+
+        // the delivered Windows status is not sent again, the Linux ones are sent in their original order
+        Mockito.verify(repo, Mockito.never()).createCommitStatus(anyString(), Matchers.<GHCommitState>any(), anyString(),
+                anyString(), Matchers.eq("Windows"));
+        ArgumentCaptor<GHCommitState> states = ArgumentCaptor.forClass(GHCommitState.class);
+        Mockito.verify(repo, Mockito.atLeastOnce()).createCommitStatus(anyString(), states.capture(), anyString(),
+                anyString(), Matchers.eq("Linux"));
+        assertEquals(GHCommitState.SUCCESS, states.getValue());
+    }
+
+    @Test
+    public void outboxGivesUpAndCompacts() throws Exception {
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("echo 'built'"));
+        WorkflowRun b1 = jenkins.buildAndAssertSuccess(p);
+
+        StatusOutbox outbox = StatusOutbox.get();
+        StatusNotification linux = outboxNotification(b1, "Linux", GHCommitState.PENDING);
+        long id = outbox.append(linux);
+        for (int i = 1; i < StatusOutbox.MAX_ATTEMPTS; i++) {
+            outbox.failed(linux, id);
+        }
+        assertEquals(1, outbox.getPendingCount());
+        outbox.failed(linux, id);
+        assertEquals(0, outbox.getPendingCount());
+
+        // a step resumed after a restart learns why its status was not delivered
+        assertEquals("Gave up after " + StatusOutbox.MAX_ATTEMPTS + " failed deliveries", outbox.getFailure(id));
+        long rejected = outbox.append(linux);
+        assertTrue(outbox.isPending(rejected));
+        outbox.rejected(linux, rejected, "Resource not accessible by integration");
+        assertEquals("Resource not accessible by integration", outbox.getFailure(rejected));
+        long delivered = outbox.append(linux);
+        outbox.done(linux, delivered);
+        assertTrue(!outbox.isPending(delivered));
+        assertEquals(null, outbox.getFailure(delivered));
+
+        // the journal is rewritten once most of its records are done
+        for (int i = 0; i < StatusOutbox.COMPACTION_MIN_RECORDS; i++) {
+            outbox.done(linux, outbox.append(linux));
+        }
+        assertTrue(outbox.getRecordCount() < StatusOutbox.COMPACTION_MIN_RECORDS);
+    }
+
+    @Test
+    public void circuitBreakerOpensProbesAndReplaysOutbox() throws Exception {
+
+        GitHubNotifyConfiguration.get().setCircuitBreakerThreshold(2);
+        GitHubNotifyConfiguration.get().setCircuitBreakerOpenSeconds(1);
+        final CircuitBreakers breakers = CircuitBreakers.get();
+        final String ghe = "https://ghe.example.com/api/v3";
+        CircuitBreakers.Call<Void> down = () -> {
+            throw new ConnectException("Connection refused");
+        };
+
+        // a status failing fast is replayed without counting as a failed delivery, it is sent by a job deleted since
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("echo 'built'"));
+        StatusNotification linux = outboxNotification(jenkins.buildAndAssertSuccess(p), "Linux", GHCommitState.PENDING);
+        p.delete();
+        StatusOutbox outbox = StatusOutbox.get();
+        long id = outbox.append(linux);
+        for (int i = 0; i < StatusOutbox.MAX_ATTEMPTS; i++) {
+            outbox.unavailable(linux, id);
+        }
+        assertTrue(outbox.isPending(id));
+
+        // opens after the consecutive outages, then fails fast without sending anything
+        for (int i = 0; i < 2; i++) {
+            try {
+                breakers.call(ghe, down);
+                fail("The outage should have been reported");
+            } catch (ConnectException e) {
+                // expected
+            }
+            assertEquals(i + 1, breakers.getBreakers().get(ghe).getConsecutiveFailures());
+        }
+        assertEquals(CircuitBreakers.State.OPEN, breakers.getBreakers().get(ghe).getState());
+        assertEquals(Collections.singletonList(ghe), breakers.getUnavailableEndpoints());
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            breakers.call(ghe, calls::incrementAndGet);
+            fail("The breaker should be open");
+        } catch (CircuitBreakers.EndpointUnavailableException e) {
+            // expected
+        }
+        assertEquals(0, calls.get());
+        assertTrue(outbox.isPending(id));
+
+        // the outbox is replayed once a probe can be sent
+        long deadline = System.currentTimeMillis() + 10000;
+        while (outbox.isPending(id) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertTrue(outbox.getFailure(id).contains("no longer exists"));
+
+        // a single probe is let through while half-open, and closes the breaker when it succeeds
+        assertEquals("probe", breakers.call(ghe, () -> {
+            assertEquals(CircuitBreakers.State.HALF_OPEN, breakers.getBreakers().get(ghe).getState());
+            try {
+                breakers.call(ghe, calls::incrementAndGet);
+                fail("Only one probe should be let through");
+            } catch (CircuitBreakers.EndpointUnavailableException e) {
+                // expected
+            }
+            return "probe";
+        }));
+        assertEquals(0, calls.get());
+        assertEquals(CircuitBreakers.State.CLOSED, breakers.getBreakers().get(ghe).getState());
+        assertEquals(0, breakers.getBreakers().get(ghe).getConsecutiveFailures());
+
+        // a failed probe opens it again straight away
+        for (int i = 0; i < 2; i++) {
+            try {
+                breakers.call(ghe, down);
+            } catch (ConnectException e) {
+                // expected
+            }
+        }
+        Thread.sleep(1100);
+        try {
+            breakers.call(ghe, down);
+            fail("The probe should have failed");
+        } catch (ConnectException e) {
+            // expected
+        }
+        assertEquals(CircuitBreakers.State.OPEN, breakers.getBreakers().get(ghe).getState());
+        assertTrue(breakers.getBreakers().get(ghe).getOpenUntil().getTime() > System.currentTimeMillis());
+    }
+
+    @Test
+    public void buildFailingFastDoesNotReplayItsStatus() throws Exception {
+
+        GitHubNotifyConfiguration.get().setCircuitBreakerThreshold(1);
+        GitHubNotifyConfiguration.get().setCircuitBreakerOpenSeconds(60);
+        try {
+            CircuitBreakers.get().call(null, () -> {
+                throw new ConnectException("Connection refused");
+            });
+            fail("The outage should have been reported");
+        } catch (ConnectException e) {
+            // expected
+        }
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains("is unavailable", b1);
+        // the step failed, its status must not reach the commit once the endpoint is back
+        assertEquals(0, StatusOutbox.get().getPendingCount());
+    }
+
+    @Test
+    public void buildWithoutWaitingDropsRejectedStatusFromOutbox() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(repo.createCommitStatus(anyString(), Matchers.<GHCommitState>any(), anyString(), anyString(), anyString()))
+                .thenThrow(new HttpException("Resource not accessible by integration", 403, "Forbidden", "https://api.github.com"));
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', validate: false, wait: false\n" +
+                "githubNotifyFlush()"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains("Resource not accessible by integration", b1);
+        // GitHub will reject it again, it is not kept to be replayed
+        assertEquals(0, StatusOutbox.get().getPendingCount());
+    }
+
+    @Test
+    public void buildWithBatch() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(repo.createCommitStatus(anyString(), Matchers.<GHCommitState>any(), anyString(), anyString(), Matchers.eq("Windows")))
+                .thenThrow(new HttpException("No commit found for SHA", 422, "Unprocessable Entity", "https://api.github.com"));
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "def results = githubNotifyBatch account: 'raul-arabaolaza', credentialsId: 'dummy', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "targetUrl: 'http://www.cloudbees.com', statuses: [" +
+                        "[context: 'Linux', status: 'SUCCESS', description: 'All tests are OK'], " +
+                        "[context: 'Windows', status: 'FAILURE', description: 'Some tests failed']]\n" +
+                "echo \"Linux=${results['Linux']}\""
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains("Linux=" + GitHubStatusBatchStep.DELIVERED, b1);
+        jenkins.assertLogContains(GitHubStatusNotificationStep.INVALID_COMMIT, b1);
+        Mockito.verify(gh, Mockito.times(1)).getRepository(anyString());
+    }
+
+    @Test
+    public void buildWithBatchRejectsDuplicatedContexts() throws Exception {
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotifyBatch account: 'raul-arabaolaza', credentialsId: 'dummy', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', statuses: [" +
+                        "[context: 'Linux', status: 'SUCCESS', description: 'All tests are OK'], " +
+                        "[context: 'Linux', status: 'FAILURE', description: 'Some tests failed']]"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains(GitHubStatusBatchStep.DUPLICATED_CONTEXT + "Linux", b1);
+    }
+
+    @Test
+    public void buildWithStageStatusesWithoutGitHubSource() throws Exception {
+
+        GitHubNotifyConfiguration.get().setStageStatuses(true);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "stage('Build') { echo 'building' }\n" +
+                "stage('Test') { error 'tests failed' }"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        // nothing can be inferred, the stages are not notified and the build is not affected
+        assertEquals(null, b1.getAction(GitHubNotifyTimingsAction.class));
+    }
+
+    @Test
+    public void buildWithStageStatuses() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        GHUser user = PowerMockito.mock(GHUser.class);
+        PowerMockito.when(user.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(gh.getUser(anyString())).thenReturn(user);
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+        GitHubNotifyConfiguration.get().setStageStatuses(true);
+
+        GitHubSourceFolder f = jenkins.jenkins.createProject(GitHubSourceFolder.class, "source");
+        WorkflowJob p = f.createProject(WorkflowJob.class, "master");
+        p.setDefinition(new CpsFlowDefinition(
+                "stage('Build') { semaphore 'build' }\n" +
+                "stage('Test') { unstable 'flaky tests' }\n" +
+                "stage('Deploy') { catchError(buildResult: 'UNSTABLE', stageResult: 'FAILURE') { error 'no target' } }"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("build/1", b1);
+        // the start of the stage is sent while it runs
+        Mockito.verify(repo, Mockito.timeout(10000)).createCommitStatus(Matchers.eq(GitHubSourceFolder.SHA),
+                Matchers.eq(GHCommitState.PENDING), anyString(), Matchers.eq("Stage Build is running"),
+                Matchers.eq(GitHubNotifyConfiguration.DEFAULT_STAGE_CONTEXT_PREFIX + "Build"));
+        SemaphoreStep.success("build/1", null);
+        jenkins.assertBuildStatus(Result.UNSTABLE, jenkins.waitForCompletion(b1));
+        Mockito.verify(repo, Mockito.timeout(10000)).createCommitStatus(Matchers.eq(GitHubSourceFolder.SHA),
+                Matchers.eq(GHCommitState.SUCCESS), anyString(), Matchers.eq("Stage Build succeeded"),
+                Matchers.eq(GitHubNotifyConfiguration.DEFAULT_STAGE_CONTEXT_PREFIX + "Build"));
+        // an unstable stage has no error, its end is read from the warning of the step
+        Mockito.verify(repo, Mockito.timeout(10000)).createCommitStatus(Matchers.eq(GitHubSourceFolder.SHA),
+                Matchers.eq(GHCommitState.FAILURE), anyString(), Matchers.eq("Stage Test is unstable"),
+                Matchers.eq(GitHubNotifyConfiguration.DEFAULT_STAGE_CONTEXT_PREFIX + "Test"));
+        Mockito.verify(repo, Mockito.timeout(10000)).createCommitStatus(Matchers.eq(GitHubSourceFolder.SHA),
+                Matchers.eq(GHCommitState.FAILURE), anyString(), Matchers.eq("Stage Deploy failed"),
+                Matchers.eq(GitHubNotifyConfiguration.DEFAULT_STAGE_CONTEXT_PREFIX + "Deploy"));
+        Mockito.verify(repo, Mockito.never()).createCommitStatus(anyString(), Matchers.eq(GHCommitState.SUCCESS),
+                anyString(), anyString(), Matchers.eq(GitHubNotifyConfiguration.DEFAULT_STAGE_CONTEXT_PREFIX + "Test"));
+    }
+
+    @Test
+    public void buildWithFanOut() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        GHCommit commit = PowerMockito.mock(GHCommit.class);
+        PowerMockito.when(commit.getSHA1()).thenReturn("0b5936eb903d439ac0c0bf84940d73128d5e9487");
+        PowerMockito.when(gh.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(gh.getRepository("raul-arabaolaza/missing")).thenReturn(null);
+        PowerMockito.when(repo.getCommit(anyString())).thenReturn(commit);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "def results = githubNotifyFanOut credentialsId: 'dummy', context: 'Release', status: 'SUCCESS', " +
+                        "description: 'Released', parallelism: 2, validate: true, targetUrl: 'http://www.cloudbees.com', targets: [" +
+                        "[account: 'raul-arabaolaza', repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487'], " +
+                        "[account: 'raul-arabaolaza', repo: 'acceptance-test-harness', sha: '0b5936e'], " +
+                        "[account: 'raul-arabaolaza', repo: 'acceptance-test-harness', sha: '0b5936e'], " +
+                        "[account: 'raul-arabaolaza', repo: 'missing', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487']]\n" +
+                "echo \"ath=${results['raul-arabaolaza/acceptance-test-harness@0b5936e']}\""
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains("ath=" + GitHubStatusBatchStep.DELIVERED, b1);
+        jenkins.assertLogContains(GitHubStatusNotificationStep.INVALID_REPO, b1);
+        // the repository is resolved once for both of its commits and the client is validated once
+        Mockito.verify(gh, Mockito.times(1)).getRepository("raul-arabaolaza/acceptance-test-harness");
+        Mockito.verify(gh, Mockito.times(1)).isCredentialValid();
+        Mockito.verify(repo, Mockito.atLeastOnce()).createCommitStatus("0b5936eb903d439ac0c0bf84940d73128d5e9487",
+                GHCommitState.SUCCESS, "http://www.cloudbees.com", "Released", "Release");
+        // the commit listed twice is looked up once
+        Mockito.verify(repo, Mockito.times(1)).getCommit("0b5936e");
+    }
+
+    @Test
+    public void buildWithFanOutRejectsConflictingTargets() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotifyFanOut credentialsId: 'dummy', context: 'Release', status: 'SUCCESS', description: 'Released', targets: [" +
+                        "[account: 'raul-arabaolaza', repo: 'acceptance-test-harness', sha: '0b5936e'], " +
+                        "[account: 'raul-arabaolaza', repo: 'acceptance-test-harness', sha: '0b5936e', credentialsId: 'other']]"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains("raul-arabaolaza/acceptance-test-harness@0b5936e is listed twice", b1);
+        Mockito.verify(gh, Mockito.never()).getRepository(anyString());
+    }
+
+    @Test
+    public void buildWithCheckRun() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        GHUser user = PowerMockito.mock(GHUser.class);
+        GHCommit commit = PowerMockito.mock(GHCommit.class);
+        PowerMockito.when(user.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(gh.getUser(anyString())).thenReturn(user);
+        PowerMockito.when((repo.getCommit(anyString()))).thenReturn(commit);
+        GHCheckRunBuilder builder = PowerMockito.mock(GHCheckRunBuilder.class, Mockito.RETURNS_SELF);
+        GHCheckRun checkRun = PowerMockito.mock(GHCheckRun.class);
+        PowerMockito.when(checkRun.getId()).thenReturn(42L);
+        PowerMockito.when(builder.create()).thenReturn(checkRun);
+        PowerMockito.when(repo.createCheckRun(anyString(), anyString())).thenReturn(builder);
+        PowerMockito.when(repo.updateCheckRun(42L)).thenReturn(builder);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', checkRun: true, " +
+                        "credentialsId: 'dummy', description: 'Running tests', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'PENDING'\n" +
+                "def failures = []\n" +
+                "for (int i = 1; i <= 60; i++) {\n" +
+                "    failures << [path: 'src/test/Test.java', startLine: i, message: 'Test ' + i + ' failed']\n" +
+                "}\n" +
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', checkRun: true, " +
+                        "credentialsId: 'dummy', description: '60 tests failed', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'FAILURE', annotations: failures"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+        Mockito.verify(repo, Mockito.times(1)).createCheckRun("ATH Results", "0b5936eb903d439ac0c0bf84940d73128d5e9487");
+        // the progress with the first 50 annotations, then the last 10
+        Mockito.verify(repo, Mockito.times(2)).updateCheckRun(42L);
+        Mockito.verify(repo, Mockito.never()).createCommitStatus(anyString(), Matchers.<GHCommitState>any(), anyString(), anyString(), anyString());
+        // validated like a status, the credentials validation is not forced on every notification
+        Mockito.verify(repo, Mockito.times(2)).getCommit("0b5936eb903d439ac0c0bf84940d73128d5e9487");
+        Mockito.verify(gh, Mockito.times(1)).isCredentialValid();
+    }
+
+    @Test
+    public void buildWithCheckRunWithoutValidationReportsInvalidCredentials() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        PowerMockito.when(gh.getRepository(anyString()))
+                .thenThrow(new HttpException("Bad credentials", 401, "Unauthorized", "https://api.github.com"));
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', checkRun: true, validate: false, " +
+                        "credentialsId: 'dummy', description: 'Running tests', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'PENDING'"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.FAILURE, jenkins.waitForCompletion(b1));
+        jenkins.assertLogContains(GitHubStatusNotificationStep.CREDENTIALS_LOGIN_INVALID, b1);
+    }
+
+    @Test
+    public void buildWithFolderCredentials() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        GHUser user = PowerMockito.mock(GHUser.class);
+        GHCommit commit = PowerMockito.mock(GHCommit.class);
+        PowerMockito.when(user.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(gh.getUser(anyString())).thenReturn(user);
+        PowerMockito.when((repo.getCommit(anyString()))).thenReturn(commit);
+
+        Folder f = jenkins.jenkins.createProject(Folder.class, "folder" + jenkins.jenkins.getItems().size());
+        CredentialsStore folderStore = getFolderStore(f);
+        folderStore.addCredentials(Domain.global(),
+                new DummyCredentials(CredentialsScope.GLOBAL, "user", "password"));
+
+        WorkflowJob p = f.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com'"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+    }
+
+    @Test
+    public void buildEnterprise() throws Exception {
+
+        GitHubBuilder ghb = PowerMockito.mock(GitHubBuilder.class);
+        PowerMockito.when(ghb.withProxy(Matchers.<Proxy>anyObject())).thenReturn(ghb);
+        PowerMockito.when(ghb.withOAuthToken(anyString(), anyString())).thenReturn(ghb);
+        PowerMockito.when(ghb.withEndpoint("https://api.example.com")).thenReturn(ghb);
+        PowerMockito.whenNew(GitHubBuilder.class).withNoArguments().thenReturn(ghb);
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(ghb.build()).thenReturn(gh);
+        PowerMockito.when(gh.isCredentialValid()).thenReturn(true);
+        GHRepository repo = PowerMockito.mock(GHRepository.class);
+        GHUser user = PowerMockito.mock(GHUser.class);
+        GHCommit commit = PowerMockito.mock(GHCommit.class);
+        PowerMockito.when(user.getRepository(anyString())).thenReturn(repo);
+        PowerMockito.when(gh.getUser(anyString())).thenReturn(user);
+        PowerMockito.when((repo.getCommit(anyString()))).thenReturn(commit);
+
+        Credentials dummy = new DummyCredentials(CredentialsScope.GLOBAL, "user", "password");
+        SystemCredentialsProvider.getInstance().getCredentials().add(dummy);
+
+        WorkflowJob p = jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition(
+                "githubNotify account: 'raul-arabaolaza', context: 'ATH Results', " +
+                        "credentialsId: 'dummy', description: 'All tests are OK', " +
+                        "repo: 'acceptance-test-harness', sha: '0b5936eb903d439ac0c0bf84940d73128d5e9487', " +
+                        "status: 'SUCCESS', targetUrl: 'http://www.cloudbees.com', gitApiUrl:'https://api.example.com'"
+        ));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        jenkins.assertBuildStatus(Result.SUCCESS, jenkins.waitForCompletion(b1));
+    }
+
+    private CredentialsStore getFolderStore(Folder f) {
+        Iterable<CredentialsStore> stores = CredentialsProvider.lookupStores(f);
+        CredentialsStore folderStore = null;
+        for (CredentialsStore s : stores) {
+            if (s.getProvider() instanceof FolderCredentialsProvider && s.getContext() == f) {
+                folderStore = s;
+                break;
+            }
+        }
+        return folderStore;
+    }
+
+    private static GitHub rateLimited(int limit, int remaining, long resetInMillis) {
+        GHRateLimit rateLimit = Mockito.mock(GHRateLimit.class);
+        PowerMockito.when(rateLimit.getLimit()).thenReturn(limit);
+        PowerMockito.when(rateLimit.getRemaining()).thenReturn(remaining);
+        PowerMockito.when(rateLimit.getResetDate()).thenReturn(new Date(System.currentTimeMillis() + resetInMillis));
+        GitHub gh = PowerMockito.mock(GitHub.class);
+        PowerMockito.when(gh.lastRateLimit()).thenReturn(rateLimit);
+        return gh;
+    }
+
+    private static StatusNotification outboxNotification(WorkflowRun run, String context, GHCommitState state) {
+        return new StatusNotification(run, "dummy", null, "raul-arabaolaza", "acceptance-test-harness",
+                "0b5936eb903d439ac0c0bf84940d73128d5e9487", state, "Tests " + state, context, "http://www.cloudbees.com", false);
     }
 
 
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.kohsuke.github.GHCommitState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the notifications and the configuration form checks against a {@link StubGitHub}.
+ *
+ * The notify benchmarks queue the status and wait for its delivery, which is what the step execution does once the
+ * notification data is known. Each benchmark thread uses its own context, so concurrent statuses are not coalesced.
+ */
+@JmhBenchmark
+public class GitHubNotifyBenchmark {
+
+    private static final String SHA = "0b5936eb903d439ac0c0bf84940d73128d5e9487";
+
+    public static class StubState extends JmhBenchmarkState {
+
+        /**
+         * Delay of every stub response.
+         */
+        @Param({"0", "20"})
+        public long latencyMillis;
+
+        /**
+         * Requests served per second before the stub rejects them as rate limited.
+         */
+        @Param({"1000000", "500"})
+        public int rateLimit;
+
+        StubGitHub github;
+        WorkflowRun run;
+        GitHubStatusNotificationStep.DescriptorImpl descriptor;
+
+        @Override
+        public void setup() throws Exception {
+            github = new StubGitHub(latencyMillis, rateLimit);
+            SystemCredentialsProvider.getInstance().getCredentials().add(new DummyCredentials(CredentialsScope.GLOBAL, "user", "password"));
+            SystemCredentialsProvider.getInstance().save();
+            WorkflowJob job = getJenkins().createProject(WorkflowJob.class, "bench");
+            job.setDefinition(new CpsFlowDefinition("echo 'bench'", true));
+            run = job.scheduleBuild2(0).get();
+            descriptor = Jenkins.get().getDescriptorByType(GitHubStatusNotificationStep.DescriptorImpl.class);
+        }
+
+        @Override
+        public void tearDown() {
+            github.close();
+        }
+
+        StatusNotification notification(String context, boolean validate) {
+            return new StatusNotification(run, "dummy", github.getUrl(), "account", "repo", SHA, GHCommitState.SUCCESS,
+                    "Benchmark", context, "https://jenkins.example.com", validate);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        final String context = "bench-" + THREADS.incrementAndGet();
+    }
+
+    @Benchmark
+    public void notifyFullSha(StubState state, ThreadState thread) throws Exception {
+        StatusDeliveryQueue.get().enqueue(state.notification(thread.context, false)).get();
+    }
+
+    @Benchmark
+    public void notifyValidating(StubState state, ThreadState thread) throws Exception {
+        StatusDeliveryQueue.get().enqueue(state.notification(thread.context, true)).get();
+    }
+
+    @Benchmark
+    public void validateCommit(StubState state, Blackhole blackhole) throws Exception {
+        blackhole.consume(GitHubStatusNotificationStep.getCommitIfValid("dummy", state.github.getUrl(), "account", "repo",
+                SHA, state.run.getParent()));
+    }
+
+    @Benchmark
+    public void checkRepo(StubState state, Blackhole blackhole) {
+        blackhole.consume(state.descriptor.doCheckRepo("dummy", "repo", "account", state.github.getUrl(), state.run.getParent()));
+    }
+
+    @Benchmark
+    public void checkSha(StubState state, Blackhole blackhole) {
+        blackhole.consume(state.descriptor.doCheckSha("dummy", "repo", SHA, "account", state.github.getUrl(), state.run.getParent()));
+    }
+}
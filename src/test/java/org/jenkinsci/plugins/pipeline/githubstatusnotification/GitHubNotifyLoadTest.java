@@ -0,0 +1,123 @@
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.recipes.WithTimeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Starts many pipelines notifying the same repository at once against a {@link StubGitHub}, and reports the
+ * throughput, the latency percentiles of the builds, the peak thread count and the heap used.
+ *
+ * Only runs with {@code mvn test -Dtest=GitHubNotifyLoadTest -DloadTest}, the number of builds, stub latency and rate
+ * limit can be changed with the {@code loadTest.builds}, {@code loadTest.latencyMillis} and {@code loadTest.rateLimit}
+ * properties. The report is written to {@code target/load-test.txt}.
+ */
+public class GitHubNotifyLoadTest {
+
+    private static final String SHA = "0b5936eb903d439ac0c0bf84940d73128d5e9487";
+
+    private static final int BUILDS = Integer.getInteger("loadTest.builds", 300);
+
+    private static final long LATENCY_MILLIS = Long.getLong("loadTest.latencyMillis", 50L);
+
+    private static final int RATE_LIMIT = Integer.getInteger("loadTest.rateLimit", 5000);
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    @WithTimeout(1800)
+    public void concurrentPipelinesNotifyingOneRepo() throws Exception {
+        Assume.assumeTrue("Load test only runs with -DloadTest", System.getProperty("loadTest") != null);
+        try (StubGitHub github = new StubGitHub(LATENCY_MILLIS, RATE_LIMIT)) {
+            SystemCredentialsProvider.getInstance().getCredentials().add(new DummyCredentials(CredentialsScope.GLOBAL, "user", "password"));
+            SystemCredentialsProvider.getInstance().save();
+
+            List<WorkflowJob> jobs = new ArrayList<>();
+            for (int i = 0; i < BUILDS; i++) {
+                WorkflowJob job = jenkins.createProject(WorkflowJob.class, "load-" + i);
+                job.setDefinition(new CpsFlowDefinition(
+                        "githubNotify account: 'account', repo: 'repo', sha: '" + SHA + "', credentialsId: 'dummy', " +
+                                "gitApiUrl: '" + github.getUrl() + "', context: 'load-" + i + "', status: 'SUCCESS', " +
+                                "description: 'Load test', targetUrl: 'http://jenkins.example.com', validate: false", true));
+                jobs.add(job);
+            }
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            threads.resetPeakThreadCount();
+            System.gc();
+            long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+            long start = System.nanoTime();
+            List<Future<WorkflowRun>> builds = new ArrayList<>();
+            for (WorkflowJob job : jobs) {
+                builds.add(job.scheduleBuild2(0));
+            }
+            long[] durations = new long[BUILDS];
+            for (int i = 0; i < BUILDS; i++) {
+                WorkflowRun run = builds.get(i).get();
+                jenkins.assertBuildStatus(Result.SUCCESS, run);
+                durations[i] = run.getDuration();
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            long heapAfter = memory.getHeapMemoryUsage().getUsed();
+            Arrays.sort(durations);
+            assertEquals(BUILDS, github.getStatuses());
+
+            report("builds", BUILDS,
+                    "stub latency (ms)", LATENCY_MILLIS,
+                    "stub rate limit (requests/s)", RATE_LIMIT,
+                    "elapsed (ms)", elapsedMillis,
+                    "throughput (notifications/s)", BUILDS * 1000L / Math.max(1, elapsedMillis),
+                    "build duration p50 (ms)", percentile(durations, 0.50),
+                    "build duration p95 (ms)", percentile(durations, 0.95),
+                    "build duration p99 (ms)", percentile(durations, 0.99),
+                    "build duration max (ms)", durations[BUILDS - 1],
+                    "peak threads", threads.getPeakThreadCount(),
+                    "heap before (MB)", heapBefore / (1024 * 1024),
+                    "heap after (MB)", heapAfter / (1024 * 1024),
+                    "rate limit waits", RateLimitScheduler.get().getWaits(),
+                    "retries", RateLimitScheduler.get().getRetries());
+        }
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    private static void report(Object... entries) throws IOException {
+        File file = new File("target", "load-test.txt");
+        Files.createDirectories(file.getParentFile().toPath());
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                out.println(entries[i] + ": " + entries[i + 1]);
+            }
+        }
+    }
+}
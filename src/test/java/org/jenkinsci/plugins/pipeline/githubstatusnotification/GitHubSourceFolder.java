@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolderDescriptor;
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.Extension;
+import hudson.model.ItemGroup;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.model.listeners.RunListener;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.scm.api.SCMHead;
+import jenkins.scm.api.SCMRevisionAction;
+import jenkins.scm.api.SCMSource;
+import jenkins.scm.api.SCMSourceCriteria;
+import jenkins.scm.api.SCMSourceOwner;
+import org.jenkinsci.plugins.github_branch_source.GitHubSCMSource;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A folder standing for a GitHub branch source, its jobs build {@link #SHA} of raul-arabaolaza/acceptance-test-harness
+ * with the dummy credentials.
+ */
+public class GitHubSourceFolder extends Folder implements SCMSourceOwner {
+
+    public static final String SHA = "0b5936eb903d439ac0c0bf84940d73128d5e9487";
+
+    private transient GitHubSCMSource source;
+
+    public GitHubSourceFolder(ItemGroup parent, String name) {
+        super(parent, name);
+    }
+
+    private synchronized GitHubSCMSource getSource() {
+        if (source == null) {
+            source = new GitHubSCMSource("raul-arabaolaza", "acceptance-test-harness");
+            source.setCredentialsId("dummy");
+        }
+        return source;
+    }
+
+    @Override
+    public List<SCMSource> getSCMSources() {
+        return Collections.<SCMSource>singletonList(getSource());
+    }
+
+    @Override
+    public SCMSource getSCMSource(String sourceId) {
+        return getSource();
+    }
+
+    @Override
+    public void onSCMSourceUpdated(SCMSource source) {
+    }
+
+    @Override
+    public SCMSourceCriteria getSCMSourceCriteria(SCMSource source) {
+        return null;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractFolderDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "GitHub Source Folder";
+        }
+
+        @Override
+        public TopLevelItem newInstance(ItemGroup parent, String name) {
+            return new GitHubSourceFolder(parent, name);
+        }
+    }
+
+    /**
+     * Records the revision before the build starts, like a branch project does.
+     */
+    @Extension
+    public static class RevisionListener extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            ItemGroup parent = run.getParent().getParent();
+            if (parent instanceof GitHubSourceFolder) {
+                run.addAction(new SCMRevisionAction(((GitHubSourceFolder) parent).getSource(),
+                        new AbstractGitSCMSource.SCMRevisionImpl(new SCMHead(run.getParent().getName()), SHA)));
+            }
+        }
+    }
+}
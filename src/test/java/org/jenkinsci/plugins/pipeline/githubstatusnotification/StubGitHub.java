@@ -0,0 +1,169 @@
+package org.jenkinsci.plugins.pipeline.githubstatusnotification;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process GitHub API answering just what the notifications need, every repository and commit exists.
+ *
+ * Each response is delayed by a fixed latency and carries rate limit headers: once {@code rateLimit} requests have
+ * been served in the current one second window the requests are rejected as GitHub does until the window resets.
+ * Like GitHub, reads answer with an {@code ETag} varying by token, and {@code 304 Not Modified} when it still matches.
+ */
+class StubGitHub implements AutoCloseable {
+
+    private static final Pattern REPO = Pattern.compile("/repos/([^/]+)/([^/]+)");
+    private static final Pattern COMMIT = Pattern.compile("/repos/([^/]+)/([^/]+)/commits/([^/]+)");
+    private static final Pattern STATUS = Pattern.compile("/repos/([^/]+)/([^/]+)/statuses/([^/]+)");
+    private static final Pattern USER = Pattern.compile("/users?(?:/([^/]+))?");
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final long latencyMillis;
+    private final int rateLimit;
+    private final AtomicLong window = new AtomicLong();
+    private final AtomicInteger used = new AtomicInteger();
+    private final AtomicInteger statuses = new AtomicInteger();
+    private final List<String[]> requests = new CopyOnWriteArrayList<>();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    StubGitHub(long latencyMillis, int rateLimit) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.rateLimit = rateLimit;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ':' + server.getAddress().getPort();
+    }
+
+    /**
+     * Number of statuses created so far.
+     */
+    int getStatuses() {
+        return statuses.get();
+    }
+
+    /**
+     * Requests received for the path so far, each as its authorization header, {@code if-none-match} when it was
+     * conditional, and the response code.
+     */
+    List<String> getRequests(String path) {
+        List<String> result = new ArrayList<>();
+        for (String[] request : requests) {
+            if (request[0].equals(path)) {
+                result.add(request[1]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of connections opened by clients so far.
+     */
+    int getConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        connections.add(exchange.getRemoteAddress());
+        try (InputStream body = exchange.getRequestBody()) {
+            while (body.read() != -1) {
+                // consume the request
+            }
+        }
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long now = System.currentTimeMillis();
+        long currentWindow = TimeUnit.MILLISECONDS.toSeconds(now);
+        long previousWindow = window.get();
+        if (currentWindow != previousWindow && window.compareAndSet(previousWindow, currentWindow)) {
+            used.set(0);
+        }
+        int remaining = rateLimit - used.incrementAndGet();
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.getResponseHeaders().add("X-RateLimit-Limit", String.valueOf(rateLimit));
+        exchange.getResponseHeaders().add("X-RateLimit-Remaining", String.valueOf(Math.max(0, remaining)));
+        exchange.getResponseHeaders().add("X-RateLimit-Reset", String.valueOf(currentWindow + 1));
+        if (remaining < 0) {
+            respond(exchange, 403, "{\"message\":\"API rate limit exceeded\"}");
+            return;
+        }
+        exchange.getResponseHeaders().add("Cache-Control", "private, max-age=60, s-maxage=60");
+        exchange.getResponseHeaders().add("Vary", "Accept, Authorization, Cookie");
+
+        String path = exchange.getRequestURI().getPath();
+        Matcher matcher;
+        if ((matcher = STATUS.matcher(path)).matches() && "POST".equals(exchange.getRequestMethod())) {
+            statuses.incrementAndGet();
+            respond(exchange, 201, "{\"id\":1,\"state\":\"success\",\"context\":\"stub\"}");
+        } else if ((matcher = COMMIT.matcher(path)).matches()) {
+            respond(exchange, 200, "{\"sha\":\"" + matcher.group(3) + "\"}");
+        } else if ((matcher = REPO.matcher(path)).matches()) {
+            respond(exchange, 200, "{\"id\":1,\"name\":\"" + matcher.group(2) + "\",\"full_name\":\"" + matcher.group(1) + '/'
+                    + matcher.group(2) + "\",\"owner\":{\"login\":\"" + matcher.group(1) + "\"},\"url\":\"" + getUrl() + path + "\"}");
+        } else if ((matcher = USER.matcher(path)).matches()) {
+            String login = matcher.group(1) == null ? "stub" : matcher.group(1);
+            respond(exchange, 200, "{\"id\":1,\"login\":\"" + login + "\",\"type\":\"User\"}");
+        } else {
+            respond(exchange, 404, "{\"message\":\"Not Found\"}");
+        }
+    }
+
+    private void respond(HttpExchange exchange, int code, String json) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (code == 200 && "GET".equals(exchange.getRequestMethod())) {
+            String etag = '"' + Integer.toHexString((authorization + json).hashCode()) + '"';
+            exchange.getResponseHeaders().add("ETag", etag);
+            if (etag.equals(ifNoneMatch)) {
+                code = 304;
+            }
+        }
+        requests.add(new String[] {exchange.getRequestURI().getPath(),
+                authorization + (ifNoneMatch == null ? "" : " if-none-match") + ' ' + code});
+        if (code == 304) {
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}